@@ -0,0 +1,135 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A read-only memory mapping of an entire APK, split into segments because a
+ * single MappedByteBuffer cannot exceed 2 GB. CRCs of STORED entries are
+ * computed directly over the mapped pages, so page-cache-resident data is
+ * never copied into the Java heap. unmap() releases the mapping at once
+ * rather than when the segments are garbage collected.
+ */
+public class ApkMapping {
+
+	private static final long SEGMENT_SIZE = 1L << 30;
+	/** Unsafe.invokeCleaner (Java 9 or later) and its receiver, or null. */
+	private static final Method invokeCleaner;
+	private static final Object unsafe;
+	private final MappedByteBuffer[] segments;
+
+	static {
+		Method cleanerMethod = null;
+		Object theUnsafe = null;
+		try {
+			// Looked up reflectively so that the tool still runs on Java 8
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			cleanerMethod = unsafeClass.getMethod("invokeCleaner",
+					ByteBuffer.class);
+			final Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			theUnsafe = field.get(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			cleanerMethod = null;
+		}
+		invokeCleaner = cleanerMethod;
+		unsafe = theUnsafe;
+	}
+
+	private ApkMapping(MappedByteBuffer[] segments) {
+		this.segments = segments;
+	}
+
+	/** Maps the whole file open on channel. */
+	public static ApkMapping map(FileChannel channel) throws IOException {
+		final long size = channel.size();
+		final int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		final MappedByteBuffer[] segments = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			final long start = i * SEGMENT_SIZE;
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+					Math.min(SEGMENT_SIZE, size - start));
+		}
+		return new ApkMapping(segments);
+	}
+
+	/**
+	 * Updates crc with bytes [position, position + length) of the file. The
+	 * caller must make sure the range lies within the file.
+	 */
+	public void updateCrc(CRC32 crc, long position, long length) {
+		while (length > 0) {
+			final int segment = (int) (position / SEGMENT_SIZE);
+			final int offset = (int) (position % SEGMENT_SIZE);
+			final int chunk = (int) Math.min(length, SEGMENT_SIZE - offset);
+			// Views keep the shared segments safe for concurrent callers
+			final ByteBuffer view = segments[segment].duplicate();
+			view.limit(offset + chunk);
+			view.position(offset);
+			crc.update(view);
+			position += chunk;
+			length -= chunk;
+		}
+	}
+
+	/**
+	 * Unmaps all segments. No caller may use this mapping, or any view of
+	 * it, afterwards. Returns false if a segment could not be unmapped and
+	 * is left to the garbage collector.
+	 */
+	public boolean unmap() {
+		boolean unmapped = true;
+		for (int i = 0; i < segments.length; i++) {
+			if (segments[i] != null) {
+				unmapped &= release(segments[i]);
+				segments[i] = null;
+			}
+		}
+		return unmapped;
+	}
+
+	private static boolean release(MappedByteBuffer segment) {
+		try {
+			if (invokeCleaner != null) {
+				invokeCleaner.invoke(unsafe, segment);
+				return true;
+			}
+			// Java 8: DirectByteBuffer.cleaner().clean()
+			final Method cleanerMethod = segment.getClass().getMethod(
+					"cleaner");
+			cleanerMethod.setAccessible(true);
+			final Object cleaner = cleanerMethod.invoke(segment);
+			if (cleaner == null) {
+				return false;
+			}
+			cleaner.getClass().getMethod("clean").invoke(cleaner);
+			return true;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return false;
+		}
+	}
+}
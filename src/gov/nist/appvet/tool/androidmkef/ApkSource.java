@@ -0,0 +1,49 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Random access to the bytes of an APK, either in a file or in memory. All
+ * methods take absolute positions and are safe to call from several threads.
+ */
+public interface ApkSource {
+
+	long size() throws IOException;
+
+	/**
+	 * Reads bytes starting at position into dst, like
+	 * FileChannel.read(ByteBuffer, long). Returns -1 at end of source.
+	 */
+	int read(ByteBuffer dst, long position) throws IOException;
+
+	/** Returns true if updateCrc() can be used on this source. */
+	boolean canUpdateCrc();
+
+	/**
+	 * Updates crc with bytes [position, position + length) without copying
+	 * them into the heap. Only valid if canUpdateCrc() returns true; other
+	 * callers must read the bytes instead.
+	 */
+	void updateCrc(CRC32 crc, long position, long length);
+}
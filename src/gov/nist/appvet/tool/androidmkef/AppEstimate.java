@@ -0,0 +1,96 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Predicted cost and heap need of scanning an app, from its size and the
+ * size and entry count of its central directory. Used by JobScheduler to
+ * order jobs and by MemoryBudget to admit scans.
+ */
+public class AppEstimate {
+
+	/** Bytes of predicted cost charged for each entry of an app. */
+	public static final long ENTRY_COST = 4096;
+	/** Heap held per entry by the parsed directory and the scanners. */
+	public static final long ENTRY_MEMORY = 96;
+	/** Heap held by a scan regardless of the app, per scan thread. */
+	public static final long THREAD_MEMORY = 256 * 1024;
+
+	private final long cost;
+	private final long memory;
+
+	public AppEstimate(long cost, long memory) {
+		this.cost = cost;
+		this.memory = memory;
+	}
+
+	/**
+	 * Reads the central directory of a job's app to estimate it. An app
+	 * whose directory cannot be read is estimated by its size alone; its
+	 * scan fails early.
+	 */
+	public static AppEstimate of(Job job) {
+		final long size = job.getAppUpload().getSize();
+		final boolean inMemory = job.getAppUpload().isInMemory();
+		// In-memory apps stay on the heap while they are scanned
+		long memory = THREAD_MEMORY * Math.max(1, Properties.scanParallelism)
+				+ (inMemory ? size : 0);
+		RandomAccessFile raf = null;
+		try {
+			final ApkSource source;
+			if (inMemory) {
+				source = new MemoryApkSource(job.getAppUpload().getBytes());
+			} else {
+				raf = new RandomAccessFile(job.getAppUpload().getFilePath(),
+						"r");
+				source = new FileApkSource(raf.getChannel());
+			}
+			final CentralDirectory directory = CentralDirectory.read(source);
+			// The directory is held once as read and once as the name set
+			memory += 2L * directory.getData().length + ENTRY_MEMORY
+					* directory.size();
+			return new AppEstimate(size + ENTRY_COST * directory.size(),
+					memory);
+		} catch (IOException e) {
+			return new AppEstimate(size, memory);
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/** Predicted cost of the scan, in bytes. */
+	public long getCost() {
+		return cost;
+	}
+
+	/** Predicted heap needed by the scan, in bytes. */
+	public long getMemory() {
+		return memory;
+	}
+}
@@ -0,0 +1,187 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import gov.nist.appvet.tool.androidmkef.util.FileUtil;
+import gov.nist.appvet.tool.androidmkef.util.HttpUtil;
+import gov.nist.appvet.tool.androidmkef.util.Logger;
+import gov.nist.appvet.tool.androidmkef.util.Metrics;
+import gov.nist.appvet.tool.androidmkef.util.Protocol;
+import gov.nist.appvet.tool.androidmkef.util.UploadedFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+
+/**
+ * This class accepts many apps in one multipart request. Each APK part
+ * belongs to the appid field sent before it. Apps are queued for scanning as
+ * soon as their part has been received, so scanning starts while the rest of
+ * the batch is still being uploaded. The response lists, one per line, each
+ * app as ACCEPTED or REJECTED with a reason; reports of accepted apps are
+ * sent back to AppVet one by one, as for single submissions. If the upload
+ * breaks off after some apps were accepted, the response is still 202, and
+ * a REJECTED line with app ID - gives the error, so that the accepted apps
+ * are not resubmitted. Batches require the asynchronous protocol.
+ */
+public class BatchService extends Service {
+
+	private static final long serialVersionUID = 1L;
+	private static final Logger log = Properties.log;
+
+	public BatchService() {
+		super();
+	}
+
+	protected void doPost(HttpServletRequest request,
+			HttpServletResponse response) throws ServletException, IOException {
+
+		log.debug("In MKEF BatchService doPost()");
+		if (!Properties.protocol.equals(Protocol.ASYNCHRONOUS.name())) {
+			HttpUtil.sendHttp400(response,
+					"Batch submission requires the asynchronous protocol");
+			return;
+		}
+		Metrics.increment("batch.requests");
+
+		ServletFileUpload upload = new ServletFileUpload();
+		StringBuffer manifest = new StringBuffer();
+		HashSet<String> appIds = new HashSet<String>();
+		String appId = null;
+		String submitter = null;
+		int received = 0;
+		int accepted = 0;
+		int busy = 0;
+		String pendingPath = null;
+		try {
+			FileItemIterator iter = upload.getItemIterator(request);
+			while (iter.hasNext()) {
+				FileItemStream item = iter.next();
+				InputStream stream = item.openStream();
+				if (item.isFormField()) {
+					String incomingParameter = item.getFieldName();
+					String incomingValue = Streams.asString(stream);
+					if (incomingParameter.equals("appid")) {
+						appId = incomingValue;
+					} else if (incomingParameter.equals("username")
+							|| (incomingParameter.equals("toolid")
+									&& submitter == null)) {
+						submitter = incomingValue;
+					}
+					continue;
+				}
+				if (item.getName() == null || !item.getName().endsWith(".apk")) {
+					// Icons are not needed to scan; skip other parts
+					continue;
+				}
+				received++;
+				String fileName = FileUtil.getFileName(item.getName());
+				if (appId == null) {
+					reject(manifest, "-", "No app ID specified for "
+							+ fileName);
+					continue;
+				}
+				if (!appIds.add(appId)) {
+					reject(manifest, appId, "Duplicate app ID");
+					appId = null;
+					continue;
+				}
+				log.debug("Received app " + appId + ": " + item.getName());
+				pendingPath = getUploadPath(appId, fileName);
+				UploadedFile appUpload = UploadedFile.receive(stream,
+						Properties.inMemoryMaxSize, pendingPath);
+				pendingPath = null;
+				Job job = new Job(appId, submitter != null ? submitter
+						: request.getRemoteAddr(), fileName, appUpload, null);
+				int status = enqueue(job);
+				if (status == HttpServletResponse.SC_ACCEPTED) {
+					manifest.append("ACCEPTED\t" + appId + "\n");
+					accepted++;
+				} else if (status == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+					reject(manifest, appId, "Too many apps queued");
+					busy++;
+				} else {
+					reject(manifest, appId, "Could not save app");
+				}
+				// Each app ID applies to the one APK that follows it
+				appId = null;
+			}
+		} catch (FileUploadException e) {
+			log.error(e.toString());
+			deletePending(pendingPath);
+			if (accepted == 0) {
+				HttpUtil.sendHttp400(response, "Invalid upload: "
+						+ e.getMessage() + "\n" + manifest);
+				return;
+			}
+			reject(manifest, "-", "Invalid upload: " + e.getMessage());
+		} catch (IOException e) {
+			log.error(e.toString());
+			deletePending(pendingPath);
+			if (accepted == 0) {
+				HttpUtil.sendHttp500(response, "Could not save upload\n"
+						+ manifest);
+				return;
+			}
+			reject(manifest, "-", "Could not save upload: " + e.getMessage());
+		}
+		Metrics.add("batch.apps", received);
+		log.debug("Batch of " + received + " apps, " + accepted + " accepted");
+
+		if (received == 0) {
+			HttpUtil.sendHttp400(response, "No apps were received.");
+		} else if (accepted == 0 && busy > 0) {
+			HttpUtil.sendHttp503(response, manifest.toString(),
+					Properties.queueRetryAfter);
+		} else {
+			HttpUtil.sendHttp202(response, manifest.toString());
+		}
+	}
+
+	private static void reject(StringBuffer manifest, String appId,
+			String reason) {
+		manifest.append("REJECTED\t" + appId + "\t"
+				+ reason.replaceAll("\\s+", " ") + "\n");
+	}
+
+	/**
+	 * Deletes what is left of the part being received when the upload
+	 * failed: its spill file, if any, and its app directory if empty.
+	 */
+	private static void deletePending(String pendingPath) {
+		if (pendingPath == null) {
+			return;
+		}
+		File pending = new File(pendingPath);
+		pending.delete();
+		pending.getParentFile().delete();
+	}
+}
@@ -0,0 +1,332 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.ZipException;
+
+/**
+ * This class reads the End-of-Central-Directory (EOCD) record and the central
+ * directory of a ZIP archive straight from the file's bytes, including ZIP64
+ * records. Unlike java.util.zip.ZipFile, it does not reject or hide malformed
+ * entries, so duplicate and inconsistent records remain visible to the
+ * scanner.
+ */
+public class CentralDirectory {
+
+	public static final int EOCD_SIGNATURE = 0x06054b50;
+	public static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+	public static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	public static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	public static final int EOCD_SIZE = 22;
+	public static final int ZIP64_LOCATOR_SIZE = 20;
+	public static final int ZIP64_EOCD_SIZE = 56;
+	public static final int CENTRAL_HEADER_SIZE = 46;
+	public static final int ZIP64_EXTRA_ID = 0x0001;
+	private static final int MAX_COMMENT_LENGTH = 0xffff;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Raw bytes of the central directory. Names are not copied out. */
+	private final byte[] data;
+	private final int count;
+	private final long declaredCount;
+	private final long directoryOffset;
+	private final int[] recordOffsets;
+	private final int[] crcs;
+	private final long[] compressedSizes;
+	private final long[] uncompressedSizes;
+	private final long[] localHeaderOffsets;
+
+	private CentralDirectory(byte[] data, int count, long declaredCount,
+			long directoryOffset, int[] recordOffsets, int[] crcs,
+			long[] compressedSizes, long[] uncompressedSizes,
+			long[] localHeaderOffsets) {
+		this.data = data;
+		this.count = count;
+		this.declaredCount = declaredCount;
+		this.directoryOffset = directoryOffset;
+		this.recordOffsets = recordOffsets;
+		this.crcs = crcs;
+		this.compressedSizes = compressedSizes;
+		this.uncompressedSizes = uncompressedSizes;
+		this.localHeaderOffsets = localHeaderOffsets;
+	}
+
+	/** Reads the central directory of the archive held by source. */
+	public static CentralDirectory read(ApkSource source) throws IOException {
+		final long fileSize = source.size();
+		if (fileSize < EOCD_SIZE) {
+			throw new ZipException("File too small to be a ZIP archive");
+		}
+
+		// The EOCD is at the end of the file, followed by up to 64 KB comment
+		final int tailLength = (int) Math.min(fileSize, EOCD_SIZE
+				+ MAX_COMMENT_LENGTH);
+		final long tailOffset = fileSize - tailLength;
+		final ByteBuffer tail = readFully(source, tailOffset, tailLength);
+		int eocd = -1;
+		for (int i = tailLength - EOCD_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == EOCD_SIGNATURE) {
+				eocd = i;
+				break;
+			}
+		}
+		if (eocd < 0) {
+			throw new ZipException("End of central directory not found");
+		}
+		final long eocdOffset = tailOffset + eocd;
+		long declaredCount = tail.getShort(eocd + 10) & 0xffff;
+		long directorySize = tail.getInt(eocd + 12) & 0xffffffffL;
+		long directoryOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+
+		// ZIP64 archives keep the real values in the ZIP64 EOCD record
+		if (eocdOffset >= ZIP64_LOCATOR_SIZE) {
+			final ByteBuffer locator = readFully(source, eocdOffset
+					- ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+			if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+				final long zip64EocdOffset = locator.getLong(8);
+				if (zip64EocdOffset < 0
+						|| zip64EocdOffset + ZIP64_EOCD_SIZE > eocdOffset) {
+					throw new ZipException("Invalid ZIP64 EOCD offset");
+				}
+				final ByteBuffer zip64Eocd = readFully(source,
+						zip64EocdOffset, ZIP64_EOCD_SIZE);
+				if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+					throw new ZipException("Invalid ZIP64 EOCD signature");
+				}
+				declaredCount = zip64Eocd.getLong(32);
+				directorySize = zip64Eocd.getLong(40);
+				directoryOffset = zip64Eocd.getLong(48);
+			}
+		}
+
+		if (directoryOffset < 0 || directorySize < 0
+				|| directoryOffset + directorySize > eocdOffset) {
+			throw new ZipException("Central directory lies outside the file");
+		}
+		if (directorySize > Integer.MAX_VALUE) {
+			throw new ZipException("Central directory too large");
+		}
+		final byte[] data = new byte[(int) directorySize];
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			if (source.read(buffer, directoryOffset + buffer.position()) < 0) {
+				throw new ZipException("Truncated central directory");
+			}
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		// Every record is at least CENTRAL_HEADER_SIZE bytes, which bounds the
+		// arrays regardless of what the EOCD claims.
+		final int capacity = data.length / CENTRAL_HEADER_SIZE;
+		final int[] recordOffsets = new int[capacity];
+		final int[] crcs = new int[capacity];
+		final long[] compressedSizes = new long[capacity];
+		final long[] uncompressedSizes = new long[capacity];
+		final long[] localHeaderOffsets = new long[capacity];
+		int count = 0;
+		int pos = 0;
+		while (pos + CENTRAL_HEADER_SIZE <= data.length
+				&& buffer.getInt(pos) == CENTRAL_HEADER_SIGNATURE) {
+			final int nameLength = buffer.getShort(pos + 28) & 0xffff;
+			final int extraLength = buffer.getShort(pos + 30) & 0xffff;
+			final int commentLength = buffer.getShort(pos + 32) & 0xffff;
+			final int next = pos + CENTRAL_HEADER_SIZE + nameLength
+					+ extraLength + commentLength;
+			if (next > data.length) {
+				throw new ZipException("Truncated central directory entry "
+						+ count);
+			}
+			long uncompressedSize = buffer.getInt(pos + 24) & 0xffffffffL;
+			long compressedSize = buffer.getInt(pos + 20) & 0xffffffffL;
+			long localHeaderOffset = buffer.getInt(pos + 42) & 0xffffffffL;
+			if (uncompressedSize == 0xffffffffL
+					|| compressedSize == 0xffffffffL
+					|| localHeaderOffset == 0xffffffffL) {
+				// Fields are in the ZIP64 extended information extra field
+				int extra = pos + CENTRAL_HEADER_SIZE + nameLength;
+				final int extraEnd = extra + extraLength;
+				while (extra + 4 <= extraEnd) {
+					final int id = buffer.getShort(extra) & 0xffff;
+					final int size = buffer.getShort(extra + 2) & 0xffff;
+					int field = extra + 4;
+					final int fieldEnd = Math.min(field + size, extraEnd);
+					if (id == ZIP64_EXTRA_ID) {
+						if (uncompressedSize == 0xffffffffL
+								&& field + 8 <= fieldEnd) {
+							uncompressedSize = buffer.getLong(field);
+							field += 8;
+						}
+						if (compressedSize == 0xffffffffL
+								&& field + 8 <= fieldEnd) {
+							compressedSize = buffer.getLong(field);
+							field += 8;
+						}
+						if (localHeaderOffset == 0xffffffffL
+								&& field + 8 <= fieldEnd) {
+							localHeaderOffset = buffer.getLong(field);
+						}
+						break;
+					}
+					extra = extra + 4 + size;
+				}
+				// 64-bit values are signed, and no entry's data or header can
+				// lie beyond the end of the file
+				if (uncompressedSize < 0 || compressedSize < 0
+						|| compressedSize > fileSize || localHeaderOffset < 0
+						|| localHeaderOffset > fileSize) {
+					throw new ZipException("Invalid ZIP64 size or offset in "
+							+ "central directory entry " + count);
+				}
+			}
+			recordOffsets[count] = pos;
+			crcs[count] = buffer.getInt(pos + 16);
+			compressedSizes[count] = compressedSize;
+			uncompressedSizes[count] = uncompressedSize;
+			localHeaderOffsets[count] = localHeaderOffset;
+			count++;
+			pos = next;
+		}
+		return new CentralDirectory(data, count, declaredCount,
+				directoryOffset, recordOffsets, crcs, compressedSizes,
+				uncompressedSizes, localHeaderOffsets);
+	}
+
+	private static ByteBuffer readFully(ApkSource source, long offset,
+			int length) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (source.read(buffer, offset + buffer.position()) < 0) {
+				throw new ZipException("Unexpected end of file");
+			}
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	/** Number of records actually present in the central directory. */
+	public int size() {
+		return count;
+	}
+
+	/** Number of records claimed by the (ZIP64) EOCD record. */
+	public long getDeclaredCount() {
+		return declaredCount;
+	}
+
+	public long getDirectoryOffset() {
+		return directoryOffset;
+	}
+
+	/** Raw central directory bytes backing the name offsets below. */
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getNameOffset(int index) {
+		return recordOffsets[index] + CENTRAL_HEADER_SIZE;
+	}
+
+	public int getNameLength(int index) {
+		return u16(recordOffsets[index] + 28);
+	}
+
+	public String getName(int index) {
+		return new String(data, getNameOffset(index), getNameLength(index),
+				UTF8);
+	}
+
+	public int getFlags(int index) {
+		return u16(recordOffsets[index] + 8);
+	}
+
+	public int getMethod(int index) {
+		return u16(recordOffsets[index] + 10);
+	}
+
+	public int getExtraLength(int index) {
+		return u16(recordOffsets[index] + 30);
+	}
+
+	public long getCrc(int index) {
+		return crcs[index] & 0xffffffffL;
+	}
+
+	public long getCompressedSize(int index) {
+		return compressedSizes[index];
+	}
+
+	public long getUncompressedSize(int index) {
+		return uncompressedSizes[index];
+	}
+
+	public long getLocalHeaderOffset(int index) {
+		return localHeaderOffsets[index];
+	}
+
+	/**
+	 * Returns the record indices ordered by local header offset, so that
+	 * entries can be visited with sequential reads.
+	 */
+	public int[] getIndicesByOffset() {
+		final int[] indices = new int[count];
+		boolean packable = count < (1 << 20);
+		for (int i = 0; i < count && packable; i++) {
+			packable = localHeaderOffsets[i] >= 0
+					&& localHeaderOffsets[i] < (1L << 43);
+		}
+		if (packable) {
+			// Sort offsets with the index packed into the low bits
+			final long[] packed = new long[count];
+			for (int i = 0; i < count; i++) {
+				packed[i] = (localHeaderOffsets[i] << 20) | i;
+			}
+			Arrays.sort(packed);
+			for (int i = 0; i < count; i++) {
+				indices[i] = (int) (packed[i] & 0xfffff);
+			}
+			return indices;
+		}
+		final Integer[] boxed = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			boxed[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(boxed, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(localHeaderOffsets[a.intValue()],
+						localHeaderOffsets[b.intValue()]);
+			}
+		});
+		for (int i = 0; i < count; i++) {
+			indices[i] = boxed[i].intValue();
+		}
+		return indices;
+	}
+
+	private int u16(int offset) {
+		return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8);
+	}
+}
@@ -0,0 +1,207 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * This class streams an entry's data through a fixed buffer and checks it
+ * against the CRC recorded in the central directory. Each thread reuses a
+ * single Inflater, CRC32 and buffer set, so verifying an entry allocates
+ * nothing and heap use does not depend on entry size.
+ */
+public class EntryVerifier {
+
+	public static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	public static final int LOCAL_HEADER_SIZE = 30;
+	public static final int STORED = 0;
+	public static final int DEFLATED = 8;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long ZERO_COPY_STEP = 16L * 1024 * 1024;
+
+	private static final ThreadLocal<EntryVerifier> pool = new ThreadLocal<EntryVerifier>() {
+		@Override
+		protected EntryVerifier initialValue() {
+			return new EntryVerifier();
+		}
+	};
+
+	private static final ScanBudget unlimited = ScanBudget.unlimited();
+
+	private final Inflater inflater = new Inflater(true);
+	private final CRC32 crc = new CRC32();
+	private final byte[] input = new byte[BUFFER_SIZE];
+	private final byte[] output = new byte[BUFFER_SIZE];
+	private final ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+	private final ByteBuffer headerBuffer = ByteBuffer.allocate(
+			LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+	private EntryVerifier() {
+	}
+
+	/** Returns the verifier owned by the calling thread. */
+	public static EntryVerifier get() {
+		return pool.get();
+	}
+
+	/**
+	 * Returns true if the data of the given entry matches the CRC in the
+	 * central directory. Data that cannot be located or inflated is reported
+	 * as a mismatch. Entries using compression methods other than STORED and
+	 * DEFLATED cannot be checked and are reported as matching.
+	 */
+	public boolean verify(ApkSource source, CentralDirectory directory,
+			int index) throws IOException {
+		return verify(source, directory, index, unlimited, null);
+	}
+
+	/**
+	 * Same as verify(source, directory, index), but charges inflated bytes
+	 * and elapsed time to budget, and gives up and returns true as soon as the
+	 * cancel flag is set, so that a large entry does not hold a thread after
+	 * another task has already found a mismatch. The CRC of a STORED entry is
+	 * computed without copying if the source supports it. An entry that
+	 * inflates to more than its declared size is reported as a mismatch as
+	 * soon as it does.
+	 */
+	public boolean verify(ApkSource source, CentralDirectory directory,
+			int index, ScanBudget budget, AtomicBoolean cancel)
+			throws IOException {
+		final int method = directory.getMethod(index);
+		if (method != STORED && method != DEFLATED) {
+			return true;
+		}
+		long position = getDataOffset(source, directory, index);
+		long remaining = directory.getCompressedSize(index);
+		if (position < 0 || position + remaining > source.size()) {
+			return false;
+		}
+		crc.reset();
+		if (method == STORED && source.canUpdateCrc()) {
+			// Zero-copy path, in bounded steps so that cancellation is still
+			// noticed
+			while (remaining > 0) {
+				if (cancel != null && cancel.get()) {
+					return true;
+				}
+				budget.checkTime();
+				final long n = Math.min(remaining, ZERO_COPY_STEP);
+				source.updateCrc(crc, position, n);
+				position += n;
+				remaining -= n;
+			}
+		} else if (method == STORED) {
+			while (remaining > 0) {
+				if (cancel != null && cancel.get()) {
+					return true;
+				}
+				budget.checkTime();
+				final int n = read(source, position, remaining);
+				crc.update(input, 0, n);
+				position += n;
+				remaining -= n;
+			}
+		} else {
+			inflater.reset();
+			final long declaredSize = directory.getUncompressedSize(index);
+			long inflated = 0;
+			boolean dummyByteSent = false;
+			try {
+				while (!inflater.finished()) {
+					if (inflater.needsInput()) {
+						if (cancel != null && cancel.get()) {
+							return true;
+						}
+						budget.checkTime();
+						if (remaining > 0) {
+							final int n = read(source, position, remaining);
+							inflater.setInput(input, 0, n);
+							position += n;
+							remaining -= n;
+						} else if (!dummyByteSent) {
+							// A nowrap Inflater may need one extra byte to
+							// detect the end of the stream.
+							input[0] = 0;
+							inflater.setInput(input, 0, 1);
+							dummyByteSent = true;
+						} else {
+							return false;
+						}
+					}
+					final int n = inflater.inflate(output);
+					if (n > 0) {
+						inflated += n;
+						if (inflated > declaredSize) {
+							return false;
+						}
+						budget.addInflated(n);
+						crc.update(output, 0, n);
+					} else if (inflater.needsDictionary()) {
+						return false;
+					}
+				}
+			} catch (DataFormatException e) {
+				return false;
+			}
+		}
+		return crc.getValue() == directory.getCrc(index);
+	}
+
+	/**
+	 * Returns the offset of the entry's data, using the name and extra
+	 * lengths from its local file header, or -1 if there is no valid local
+	 * header at the offset recorded in the central directory.
+	 */
+	private long getDataOffset(ApkSource source, CentralDirectory directory,
+			int index) throws IOException {
+		final long headerOffset = directory.getLocalHeaderOffset(index);
+		headerBuffer.clear();
+		while (headerBuffer.hasRemaining()) {
+			if (source.read(headerBuffer, headerOffset
+					+ headerBuffer.position()) < 0) {
+				return -1;
+			}
+		}
+		if (headerBuffer.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+			return -1;
+		}
+		final int nameLength = headerBuffer.getShort(26) & 0xffff;
+		final int extraLength = headerBuffer.getShort(28) & 0xffff;
+		return headerOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+	}
+
+	private int read(ApkSource source, long position, long remaining)
+			throws IOException {
+		inputBuffer.clear();
+		inputBuffer.limit((int) Math.min(input.length, remaining));
+		final int n = source.read(inputBuffer, position);
+		if (n <= 0) {
+			throw new ZipException("Unexpected end of entry data");
+		}
+		return n;
+	}
+}
@@ -0,0 +1,83 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import gov.nist.appvet.tool.androidmkef.util.Metrics;
+
+/**
+ * An APK read from a file channel. Once map() has been called, CRCs are
+ * computed directly over the memory-mapped file until unmap() is called.
+ */
+public class FileApkSource implements ApkSource {
+
+	private final FileChannel channel;
+	private ApkMapping mapping = null;
+
+	public FileApkSource(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/** Memory-maps the file for zero-copy CRC computation. */
+	public void map() throws IOException {
+		if (mapping == null) {
+			mapping = ApkMapping.map(channel);
+		}
+	}
+
+	/**
+	 * Releases the mapping, if any, so that a deleted APK frees its disk
+	 * blocks and address space right away. CRCs are then read from the
+	 * channel again.
+	 */
+	public void unmap() {
+		if (mapping != null) {
+			final ApkMapping unmapping = mapping;
+			mapping = null;
+			if (!unmapping.unmap()) {
+				Metrics.increment("apkMapping.unmapFailures");
+			}
+		}
+	}
+
+	@Override
+	public long size() throws IOException {
+		return channel.size();
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		return channel.read(dst, position);
+	}
+
+	@Override
+	public boolean canUpdateCrc() {
+		return mapping != null;
+	}
+
+	@Override
+	public void updateCrc(CRC32 crc, long position, long length) {
+		mapping.updateCrc(crc, position, length);
+	}
+}
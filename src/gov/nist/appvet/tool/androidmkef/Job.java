@@ -0,0 +1,138 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import gov.nist.appvet.tool.androidmkef.util.UploadedFile;
+
+/**
+ * This class holds everything that belongs to one app submission: its IDs,
+ * uploaded files and the paths of its working files. A Job is immutable and
+ * is passed from ingestion through scanning, reporting and delivery, so that
+ * any number of submissions can be processed at once.
+ */
+public final class Job {
+
+	public static final String DEFAULT_SUBMITTER = "default";
+	private static final String reportName = "report";
+
+	private final String appId;
+	private final String submitter;
+	private final String fileName;
+	private final UploadedFile appUpload;
+	private final UploadedFile iconUpload;
+	private final String appDirPath;
+	private final String appFilePath;
+	private final String iconFilePath;
+	private final String reportFilePath;
+	private final String htmlFileReportPath;
+	private final String pdfFileReportPath;
+	private volatile AppEstimate estimate = null;
+
+	public Job(String appId, String fileName, UploadedFile appUpload,
+			UploadedFile iconUpload) {
+		this(appId, null, fileName, appUpload, iconUpload);
+	}
+
+	/**
+	 * Creates a job on behalf of a submitter, such as an AppVet tool ID or
+	 * user name. Jobs without one are scheduled as DEFAULT_SUBMITTER.
+	 */
+	public Job(String appId, String submitter, String fileName,
+			UploadedFile appUpload, UploadedFile iconUpload) {
+		this.appId = appId;
+		this.submitter = submitter != null ? submitter : DEFAULT_SUBMITTER;
+		this.fileName = fileName;
+		this.appUpload = appUpload;
+		this.iconUpload = iconUpload;
+		this.appDirPath = Properties.TEMP_DIR + "/" + appId;
+		this.appFilePath = appDirPath + "/" + fileName;
+		this.iconFilePath = appDirPath + "/icon.png";
+		this.reportFilePath = appDirPath + "/" + reportName + "."
+				+ Properties.reportFormat.toLowerCase();
+		this.htmlFileReportPath = appDirPath + "/" + reportName + ".html";
+		this.pdfFileReportPath = appDirPath + "/" + reportName + ".pdf";
+	}
+
+	public String getAppId() {
+		return appId;
+	}
+
+	public String getSubmitter() {
+		return submitter;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public UploadedFile getAppUpload() {
+		return appUpload;
+	}
+
+	public UploadedFile getIconUpload() {
+		return iconUpload;
+	}
+
+	/** SHA-256 of the app, as computed while it was received. */
+	public String getSha256() {
+		return appUpload.getSha256();
+	}
+
+	/**
+	 * Returns the predicted cost and heap need of scanning the app, read
+	 * from its central directory on first use.
+	 */
+	public AppEstimate getEstimate() {
+		if (estimate == null) {
+			estimate = AppEstimate.of(this);
+		}
+		return estimate;
+	}
+
+	/** App directory; only created if files have to be written to it. */
+	public String getAppDirPath() {
+		return appDirPath;
+	}
+
+	public String getAppFilePath() {
+		return appFilePath;
+	}
+
+	public String getIconFilePath() {
+		return iconFilePath;
+	}
+
+	public String getReportFilePath() {
+		return reportFilePath;
+	}
+
+	/** Returns where the HTML report converted by HtmlToPdfCmd is saved. */
+	public String getHtmlFileReportPath() {
+		return htmlFileReportPath;
+	}
+
+	public String getPdfFileReportPath() {
+		return pdfFileReportPath;
+	}
+
+	public String toString() {
+		return "job " + appId + " (" + fileName + ")";
+	}
+}
@@ -0,0 +1,151 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import gov.nist.appvet.tool.androidmkef.util.Metrics;
+import gov.nist.appvet.tool.androidmkef.util.ToolStatus;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class indexes the status of recent jobs by app ID and by SHA-256 of
+ * the app, for the Status servlet. Lookups are single hash map reads.
+ * Finished jobs are dropped once they have not changed for the configured
+ * time to live; expired entries are swept at most once per tenth of that
+ * time, by whichever thread updates the index next. The index also holds at
+ * most a configured number of entries: beyond it, the oldest finished jobs
+ * are dropped first. Jobs still in progress are never dropped; their number
+ * is bounded by the job queue and the pipeline stages.
+ */
+public class JobIndex {
+
+	private static JobIndex instance = null;
+
+	private final long ttlMillis;
+	private final int maxEntries;
+	private final ConcurrentHashMap<String, JobStatus> byAppId = new ConcurrentHashMap<String, JobStatus>();
+	private final ConcurrentHashMap<String, JobStatus> bySha256 = new ConcurrentHashMap<String, JobStatus>();
+	/** Finished jobs, oldest first; may still hold jobs already dropped. */
+	private final ConcurrentLinkedQueue<JobStatus> finished = new ConcurrentLinkedQueue<JobStatus>();
+	private final AtomicInteger finishedCount = new AtomicInteger();
+	private final AtomicLong lastSweepMillis = new AtomicLong(
+			System.currentTimeMillis());
+
+	/** Returns the shared index, created on first use. */
+	public static synchronized JobIndex getInstance() {
+		if (instance == null) {
+			instance = new JobIndex(Properties.statusTtlSeconds * 1000L,
+					Properties.statusMaxEntries);
+		}
+		return instance;
+	}
+
+	public JobIndex(long ttlMillis, int maxEntries) {
+		this.ttlMillis = ttlMillis;
+		this.maxEntries = maxEntries;
+	}
+
+	/** Records that a job entered a state, indexing it if it is new. */
+	public void update(Job job, JobStatus.State state) {
+		JobStatus status = byAppId.get(job.getAppId());
+		if (status == null || state == JobStatus.State.QUEUED
+				|| status.getState().isFinal()) {
+			// A resubmitted app ID starts a new entry
+			status = new JobStatus(job, state);
+			byAppId.put(job.getAppId(), status);
+			if (job.getSha256() != null) {
+				bySha256.put(job.getSha256(), status);
+			}
+		} else {
+			status.enter(state);
+		}
+		if (state.isFinal()) {
+			finished.add(status);
+			finishedCount.incrementAndGet();
+		}
+		evictIfFull();
+		sweepIfDue();
+		Metrics.set("jobIndex.size", byAppId.size());
+	}
+
+	/** Records the verdict of a scanned job. */
+	public void setVerdict(Job job, double score, ToolStatus toolStatus) {
+		final JobStatus status = byAppId.get(job.getAppId());
+		if (status != null) {
+			status.setVerdict(score, toolStatus);
+		}
+	}
+
+	public JobStatus getByAppId(String appId) {
+		return byAppId.get(appId);
+	}
+
+	/** Returns the latest job for an app with the given SHA-256. */
+	public JobStatus getBySha256(String sha256) {
+		return bySha256.get(sha256.toLowerCase());
+	}
+
+	/** Drops the oldest finished jobs while the index holds too many. */
+	private void evictIfFull() {
+		while (byAppId.size() > maxEntries
+				|| finishedCount.get() > maxEntries) {
+			final JobStatus oldest = finished.poll();
+			if (oldest == null) {
+				return;
+			}
+			finishedCount.decrementAndGet();
+			if (remove(oldest)) {
+				Metrics.increment("jobIndex.evicted");
+			}
+		}
+	}
+
+	/**
+	 * Drops finished jobs that have outlived the time to live. They are
+	 * queued in the order they finished, so only the head is looked at.
+	 */
+	private void sweepIfDue() {
+		final long now = System.currentTimeMillis();
+		final long last = lastSweepMillis.get();
+		if (now - last < ttlMillis / 10
+				|| !lastSweepMillis.compareAndSet(last, now)) {
+			return;
+		}
+		JobStatus oldest;
+		while ((oldest = finished.peek()) != null
+				&& now - oldest.getUpdatedMillis() > ttlMillis) {
+			if (finished.remove(oldest)) {
+				finishedCount.decrementAndGet();
+				remove(oldest);
+			}
+		}
+	}
+
+	/** Removes status unless a newer job has replaced it. */
+	private boolean remove(JobStatus status) {
+		if (status.getSha256() != null) {
+			bySha256.remove(status.getSha256(), status);
+		}
+		return byAppId.remove(status.getAppId(), status);
+	}
+}
@@ -0,0 +1,327 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import gov.nist.appvet.tool.androidmkef.util.Logger;
+import gov.nist.appvet.tool.androidmkef.util.Metrics;
+import gov.nist.appvet.tool.androidmkef.util.UploadedFile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * This class keeps an append-only journal of asynchronous jobs so that jobs
+ * accepted before a crash or restart are processed when the tool starts
+ * again. Each line records one transition of a job: ACCEPTED (with the file
+ * name, the SHA-256 of the app and the submitter), SCANNED, RENDERED, and
+ * finally DELIVERED or FAILED. Lines are written by a single thread that
+ * syncs each batch with one fsync, so concurrent requests share the cost of a
+ * sync. Only ACCEPTED waits for its batch to be durable; later transitions
+ * are written behind.
+ */
+public class JobJournal {
+
+	public static final String ACCEPTED = "ACCEPTED";
+	public static final String SCANNED = "SCANNED";
+	public static final String RENDERED = "RENDERED";
+	public static final String DELIVERED = "DELIVERED";
+	public static final String FAILED = "FAILED";
+
+	private static final Logger log = Properties.log;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String JOURNAL_FILE_NAME = "jobs.log";
+	/** Journal lines written before a compaction is considered. */
+	private static final int COMPACT_THRESHOLD = 100000;
+	private static JobJournal instance = null;
+
+	private final File journalFile;
+	/** ACCEPTED lines of unfinished jobs, by app ID. */
+	private final LinkedHashMap<String, String> live = new LinkedHashMap<String, String>();
+	private final ArrayList<String> pending = new ArrayList<String>();
+	private final List<Job> recovered = new ArrayList<Job>();
+	private FileChannel channel = null;
+	private long appendedCount = 0;
+	private long durableCount = 0;
+	private long lines = 0;
+	private IOException failure = null;
+
+	/** Returns the shared journal, or null if journaling is disabled. */
+	public static synchronized JobJournal getInstance() {
+		if (instance == null && Properties.journalEnabled) {
+			try {
+				instance = new JobJournal(new File(Properties.JOURNAL_DIR,
+						JOURNAL_FILE_NAME));
+			} catch (IOException e) {
+				log.error("Could not open job journal: " + e.toString());
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Opens the journal, collecting the unfinished jobs it records and
+	 * compacting it to just those jobs.
+	 */
+	public JobJournal(File journalFile) throws IOException {
+		this.journalFile = journalFile;
+		load();
+		journalFile.getParentFile().mkdirs();
+		compact();
+		final Thread writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "mkef-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Returns the jobs that were accepted but not finished when the tool
+	 * last stopped. Each job is returned only once.
+	 */
+	public synchronized List<Job> recover() {
+		final List<Job> jobs = new ArrayList<Job>(recovered);
+		recovered.clear();
+		return jobs;
+	}
+
+	/**
+	 * Records that a job was accepted and waits until the record is on disk.
+	 * Returns false if it could not be written, in which case the job must
+	 * not be acknowledged.
+	 */
+	public boolean accepted(Job job) {
+		final String id = clean(job.getAppId());
+		final String line = ACCEPTED + "\t" + id + "\t"
+				+ clean(job.getFileName()) + "\t" + job.getSha256() + "\t"
+				+ clean(job.getSubmitter());
+		final long count;
+		synchronized (this) {
+			live.put(id, line);
+			count = append(line);
+		}
+		return awaitDurable(count);
+	}
+
+	/**
+	 * Records a later transition of a job: SCANNED, RENDERED, DELIVERED or
+	 * FAILED. Jobs that were never accepted, such as synchronous ones, are
+	 * ignored.
+	 */
+	public synchronized void record(Job job, String state) {
+		final String id = clean(job.getAppId());
+		if (!live.containsKey(id)) {
+			return;
+		}
+		if (state.equals(DELIVERED) || state.equals(FAILED)) {
+			live.remove(id);
+		}
+		append(state + "\t" + id);
+	}
+
+	private long append(String line) {
+		pending.add(line);
+		appendedCount++;
+		Metrics.set("journal.live", live.size());
+		notifyAll();
+		return appendedCount;
+	}
+
+	private synchronized boolean awaitDurable(long count) {
+		boolean interrupted = false;
+		while (durableCount < count && failure == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return durableCount >= count;
+	}
+
+	/** Writes pending lines in batches, one fsync per batch. */
+	private void writeLoop() {
+		final StringBuilder batch = new StringBuilder();
+		while (true) {
+			long count;
+			int batchLines;
+			synchronized (this) {
+				while (pending.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				batch.setLength(0);
+				for (String line : pending) {
+					batch.append(line).append('\n');
+				}
+				batchLines = pending.size();
+				pending.clear();
+				count = appendedCount;
+			}
+			try {
+				final ByteBuffer bytes = UTF8.encode(batch.toString());
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+				channel.force(false);
+				Metrics.increment("journal.syncs");
+				Metrics.add("journal.records", batchLines);
+				final boolean compactNow;
+				synchronized (this) {
+					durableCount = count;
+					lines += batchLines;
+					compactNow = lines >= COMPACT_THRESHOLD
+							&& lines >= 4 * live.size();
+					notifyAll();
+				}
+				if (compactNow) {
+					compact();
+				}
+			} catch (IOException e) {
+				log.error("Could not write job journal: " + e.toString());
+				synchronized (this) {
+					failure = e;
+					notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	/** Replays the journal; later lines supersede earlier ones. */
+	private void load() {
+		if (!journalFile.exists()) {
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(journalFile), UTF8));
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				final String[] fields = line.split("\t", -1);
+				if (fields[0].equals(ACCEPTED) && fields.length == 5) {
+					live.put(fields[1], line);
+				} else if ((fields[0].equals(DELIVERED) || fields[0]
+						.equals(FAILED)) && fields.length == 2) {
+					live.remove(fields[1]);
+				}
+				// SCANNED, RENDERED and torn lines need no action
+			}
+		} catch (IOException e) {
+			log.error("Could not read job journal: " + e.toString());
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		for (String line : new ArrayList<String>(live.values())) {
+			final String[] fields = line.split("\t", -1);
+			final Job job = toJob(fields[1], fields[4], fields[2], fields[3]);
+			if (job == null) {
+				log.error("App of unfinished job " + fields[1]
+						+ " is missing, dropping it");
+				live.remove(fields[1]);
+			} else {
+				recovered.add(job);
+			}
+		}
+		if (!recovered.isEmpty()) {
+			log.info("Recovered " + recovered.size() + " unfinished jobs");
+		}
+		Metrics.set("journal.live", live.size());
+	}
+
+	/** Rebuilds a job from the files saved when it was accepted. */
+	private static Job toJob(String appId, String submitter,
+			String fileName, String sha256) {
+		final Job job = new Job(appId, submitter, fileName, null, null);
+		final File appFile = new File(job.getAppFilePath());
+		if (!appFile.isFile()) {
+			return null;
+		}
+		final File iconFile = new File(job.getIconFilePath());
+		return new Job(appId, submitter, fileName, UploadedFile.fromFile(
+				appFile.getPath(), sha256),
+				iconFile.isFile() ? UploadedFile.fromFile(iconFile.getPath(),
+						null) : null);
+	}
+
+	/** Rewrites the journal with only the ACCEPTED lines of live jobs. */
+	private void compact() throws IOException {
+		final ArrayList<String> snapshot;
+		synchronized (this) {
+			snapshot = new ArrayList<String>(live.values());
+		}
+		if (channel != null) {
+			channel.close();
+		}
+		final File tempFile = new File(journalFile.getPath() + ".tmp");
+		final FileOutputStream out = new FileOutputStream(tempFile);
+		try {
+			final StringBuilder content = new StringBuilder();
+			for (String line : snapshot) {
+				content.append(line).append('\n');
+			}
+			out.write(content.toString().getBytes(UTF8));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(tempFile.toPath(), journalFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(journalFile.toPath(),
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		synchronized (this) {
+			lines = snapshot.size();
+		}
+		log.debug("Compacted job journal to " + snapshot.size() + " jobs");
+	}
+
+	/** Keeps tabs and line breaks out of journal fields. */
+	private static String clean(String value) {
+		return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+}
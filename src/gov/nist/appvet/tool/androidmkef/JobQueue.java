@@ -0,0 +1,112 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import gov.nist.appvet.tool.androidmkef.util.Logger;
+import gov.nist.appvet.tool.androidmkef.util.Metrics;
+import gov.nist.appvet.tool.androidmkef.util.Threads;
+
+/**
+ * This class runs accepted asynchronous jobs on a fixed pool of worker
+ * threads behind a bounded JobScheduler, so that request threads are
+ * released as soon as a submission has been acknowledged. When the
+ * scheduler is full, new jobs are rejected rather than queued without bound.
+ */
+public class JobQueue {
+
+	private static final Logger log = Properties.log;
+	private static JobQueue instance = null;
+
+	private final JobScheduler scheduler;
+
+	/** Returns the shared queue, created on first use. */
+	public static synchronized JobQueue getInstance() {
+		if (instance == null) {
+			instance = new JobQueue(Properties.queueWorkers,
+					new JobScheduler(Properties.queueCapacity,
+							Properties.schedulerAgingBytesPerSecond,
+							Properties.schedulerWeights));
+		}
+		return instance;
+	}
+
+	public JobQueue(int workers, JobScheduler scheduler) {
+		this.scheduler = scheduler;
+		for (int i = 1; i <= workers; i++) {
+			// Scanning is CPU-bound, so workers are always platform threads
+			Threads.start("mkef-worker-" + i, new Runnable() {
+				public void run() {
+					work();
+				}
+			}, false);
+		}
+		Metrics.set("jobQueue.workers", workers);
+	}
+
+	/**
+	 * Queues task for the given job. Returns false if the queue is full, in
+	 * which case the caller must reject the job.
+	 */
+	public boolean submit(Job job, Runnable task) {
+		final long cost = job.getEstimate().getCost();
+		if (!scheduler.offer(job, cost, task)) {
+			Metrics.increment("jobQueue.rejected");
+			log.warn("Queue full, rejecting " + job);
+			return false;
+		}
+		Metrics.increment("jobQueue.accepted");
+		Metrics.set("jobQueue.depth", scheduler.size());
+		log.debug("Queued " + job + " from " + job.getSubmitter()
+				+ " with cost " + cost);
+		return true;
+	}
+
+	/** Number of jobs waiting for a worker. */
+	public int getDepth() {
+		return scheduler.size();
+	}
+
+	private void work() {
+		while (true) {
+			final JobScheduler.Entry entry;
+			try {
+				entry = scheduler.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			final Job job = entry.getJob();
+			final long waitMillis = (System.nanoTime() - entry
+					.getEnqueuedNanos()) / 1000000L;
+			Metrics.set("jobQueue.depth", scheduler.size());
+			Metrics.increment("jobQueue.started");
+			Metrics.add("jobQueue.waitMillis", waitMillis);
+			Metrics.set("jobQueue.lastWaitMillis", waitMillis);
+			log.debug("Starting " + job + " after " + waitMillis
+					+ " ms in queue");
+			try {
+				entry.getTask().run();
+			} catch (RuntimeException e) {
+				log.error("Error processing " + job + ": " + e.toString());
+			} finally {
+				Metrics.increment("jobQueue.completed");
+			}
+		}
+	}
+}
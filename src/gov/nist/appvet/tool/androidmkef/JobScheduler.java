@@ -0,0 +1,180 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * This class decides which queued job is scanned next. Submitters share the
+ * workers by weighted fair queuing over the predicted cost of their jobs, so
+ * that one submitter flooding the tool cannot starve the others. Within a
+ * submitter, cheaper jobs go first, but every job earns credit while it waits
+ * so that large apps are not starved by a stream of small ones.
+ */
+public class JobScheduler {
+
+	private final int capacity;
+	private final long agingBytesPerSecond;
+	private final Map<String, Integer> weights;
+	private final HashMap<String, Submitter> submitters = new HashMap<String, Submitter>();
+	private int size = 0;
+	private long sequence = 0;
+	/** Virtual time of weighted fair queuing, in cost units. */
+	private double virtualTime = 0;
+
+	/** A job waiting for a worker. */
+	public static class Entry {
+		private final Job job;
+		private final Runnable task;
+		private final long cost;
+		private final long enqueuedNanos;
+		private final double rank;
+		private final long sequence;
+
+		Entry(Job job, Runnable task, long cost, long enqueuedNanos,
+				double rank, long sequence) {
+			this.job = job;
+			this.task = task;
+			this.cost = cost;
+			this.enqueuedNanos = enqueuedNanos;
+			this.rank = rank;
+			this.sequence = sequence;
+		}
+
+		public Job getJob() {
+			return job;
+		}
+
+		public Runnable getTask() {
+			return task;
+		}
+
+		public long getCost() {
+			return cost;
+		}
+
+		public long getEnqueuedNanos() {
+			return enqueuedNanos;
+		}
+	}
+
+	/** Queued jobs of one submitter, cheapest after aging first. */
+	private static class Submitter {
+		final PriorityQueue<Entry> entries = new PriorityQueue<Entry>(11,
+				new Comparator<Entry>() {
+					public int compare(Entry a, Entry b) {
+						if (a.rank != b.rank) {
+							return a.rank < b.rank ? -1 : 1;
+						}
+						return Long.compare(a.sequence, b.sequence);
+					}
+				});
+		final int weight;
+		double lastFinish = 0;
+
+		Submitter(int weight) {
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Creates a scheduler holding up to capacity jobs. A job's rank within
+	 * its submitter improves by agingBytesPerSecond of cost for every second
+	 * it waits. Submitters missing from weights have weight 1.
+	 */
+	public JobScheduler(int capacity, long agingBytesPerSecond,
+			Map<String, Integer> weights) {
+		this.capacity = capacity;
+		this.agingBytesPerSecond = agingBytesPerSecond;
+		this.weights = weights;
+	}
+
+	/** Adds a job; returns false if the scheduler is full. */
+	public synchronized boolean offer(Job job, long cost, Runnable task) {
+		if (size >= capacity) {
+			return false;
+		}
+		final String name = job.getSubmitter();
+		Submitter submitter = submitters.get(name);
+		if (submitter == null) {
+			final Integer weight = weights.get(name);
+			submitter = new Submitter(weight == null || weight < 1 ? 1
+					: weight);
+			submitters.put(name, submitter);
+		}
+		if (submitter.entries.isEmpty()) {
+			// A submitter that becomes active starts at the current virtual
+			// time rather than catching up on time it was idle
+			submitter.lastFinish = Math.max(submitter.lastFinish, virtualTime);
+		}
+		final long now = System.nanoTime();
+		// Aging lowers every waiting job's rank at the same rate, so ranking
+		// by cost plus enqueue time gives the same order without re-sorting
+		final double rank = cost + agingBytesPerSecond * (now / 1e9);
+		submitter.entries.add(new Entry(job, task, cost, now, rank,
+				sequence++));
+		size++;
+		notifyAll();
+		return true;
+	}
+
+	/** Removes and returns the next job to run, waiting for one if needed. */
+	public synchronized Entry take() throws InterruptedException {
+		while (size == 0) {
+			wait();
+		}
+		Submitter next = null;
+		double nextFinish = 0;
+		for (Submitter submitter : submitters.values()) {
+			final Entry head = submitter.entries.peek();
+			if (head == null) {
+				continue;
+			}
+			final double finish = submitter.lastFinish + (double) head.cost
+					/ submitter.weight;
+			if (next == null || finish < nextFinish) {
+				next = submitter;
+				nextFinish = finish;
+			}
+		}
+		final Entry entry = next.entries.poll();
+		virtualTime = Math.max(virtualTime, next.lastFinish);
+		next.lastFinish = nextFinish;
+		size--;
+		// Forget idle submitters; they restart at the current virtual time
+		final Iterator<Submitter> it = submitters.values().iterator();
+		while (it.hasNext()) {
+			final Submitter submitter = it.next();
+			if (submitter.entries.isEmpty()
+					&& submitter.lastFinish <= virtualTime) {
+				it.remove();
+			}
+		}
+		return entry;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+}
@@ -0,0 +1,124 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import gov.nist.appvet.tool.androidmkef.util.ToolStatus;
+
+/**
+ * The progress of one job as shown by the Status servlet: its current state,
+ * when it entered each state, its verdict once scanned, and whether its
+ * report was delivered. Updated by the thread processing the job and read
+ * by any number of polling threads.
+ */
+public class JobStatus {
+
+	/** States of a job, in the order they are entered. */
+	public enum State {
+		QUEUED, SCANNING, RENDERING, CONVERTING, DELIVERING, DELIVERED, FAILED;
+
+		public boolean isFinal() {
+			return this == DELIVERED || this == FAILED;
+		}
+	}
+
+	private final String appId;
+	private final String sha256;
+	private final String submitter;
+	private final long createdMillis = System.currentTimeMillis();
+	/** Milliseconds after creation at which each state was entered, or -1. */
+	private final long[] enteredMillis = new long[State.values().length];
+	private volatile State state;
+	private volatile long updatedMillis = createdMillis;
+	private volatile double score = 0.0;
+	private volatile ToolStatus toolStatus = null;
+
+	public JobStatus(Job job, State state) {
+		this.appId = job.getAppId();
+		this.sha256 = job.getSha256();
+		this.submitter = job.getSubmitter();
+		for (int i = 0; i < enteredMillis.length; i++) {
+			enteredMillis[i] = -1;
+		}
+		enter(state);
+	}
+
+	synchronized void enter(State next) {
+		updatedMillis = System.currentTimeMillis();
+		enteredMillis[next.ordinal()] = updatedMillis - createdMillis;
+		state = next;
+	}
+
+	void setVerdict(double score, ToolStatus toolStatus) {
+		this.score = score;
+		this.toolStatus = toolStatus;
+	}
+
+	public String getAppId() {
+		return appId;
+	}
+
+	public String getSha256() {
+		return sha256;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public long getUpdatedMillis() {
+		return updatedMillis;
+	}
+
+	/**
+	 * Returns the milliseconds after submission at which the job entered
+	 * state, or -1 if it has not.
+	 */
+	public synchronized long getEnteredMillis(State state) {
+		return enteredMillis[state.ordinal()];
+	}
+
+	/**
+	 * Returns one tab-separated line: app ID, state, score, tool status,
+	 * SHA-256, submitter, then the milliseconds after submission at which
+	 * the job entered each state, with "-" for states it has not entered.
+	 */
+	public synchronized String toLine() {
+		final StringBuilder line = new StringBuilder();
+		line.append(appId).append('\t').append(state);
+		line.append('\t').append(toolStatus == null ? "-" : Double
+				.toString(score));
+		line.append('\t').append(toolStatus == null ? "-" : toolStatus.name());
+		line.append('\t').append(sha256).append('\t').append(submitter);
+		for (long millis : enteredMillis) {
+			line.append('\t').append(millis < 0 ? "-" : Long.toString(millis));
+		}
+		return line.toString();
+	}
+
+	/** Column names of toLine(). */
+	public static String header() {
+		final StringBuilder line = new StringBuilder(
+				"appid\tstate\tscore\tstatus\tsha256\tsubmitter");
+		for (State state : State.values()) {
+			line.append('\t').append(state.name().toLowerCase()).append("Ms");
+		}
+		return line.toString();
+	}
+}
@@ -0,0 +1,372 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.ZipException;
+
+/**
+ * This class walks the local file headers of an archive and cross-checks them
+ * against the central directory: name, extra length, method, sizes, CRC and
+ * data offset. It detects the MasterKey and ExtraField patterns, including
+ * duplicate names that only exist in local headers, from headers alone and
+ * without decompressing any data. Duplicate names are recorded as MasterKey
+ * findings; a negative (signed 16-bit) local extra length and any other
+ * disagreement between a local header and the central directory are recorded
+ * as ExtraField findings. The walk only ever moves forward, so no archive can
+ * make it loop, and it checks the wall-clock limit of the scan budget on
+ * every header.
+ */
+public class LocalHeaderScanner {
+
+	public static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+	private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+	private static final int WINDOW_SIZE = 64 * 1024;
+
+	private final ApkSource source;
+	private final CentralDirectory directory;
+	private final ScanResult result;
+	private final boolean stopAtFirst;
+	private final ScanBudget budget;
+	/** Read-ahead window so that small entries cost no extra reads. */
+	private final ByteBuffer window = ByteBuffer.allocate(
+			WINDOW_SIZE + EntryVerifier.LOCAL_HEADER_SIZE + 0xffff).order(
+			ByteOrder.LITTLE_ENDIAN);
+	private long windowStart = 0;
+
+	/**
+	 * Creates a scanner that records its findings in result. If stopAtFirst
+	 * is set, scan() returns as soon as anything is found.
+	 */
+	public LocalHeaderScanner(ApkSource source, CentralDirectory directory,
+			ScanResult result, boolean stopAtFirst) {
+		this(source, directory, result, stopAtFirst, ScanBudget.unlimited());
+	}
+
+	/**
+	 * Same as above, but scan() throws ScanBudget.ExceededException as soon
+	 * as the scan takes longer than budget allows.
+	 */
+	public LocalHeaderScanner(ApkSource source, CentralDirectory directory,
+			ScanResult result, boolean stopAtFirst, ScanBudget budget) {
+		this.source = source;
+		this.directory = directory;
+		this.result = result;
+		this.stopAtFirst = stopAtFirst;
+		this.budget = budget;
+		window.limit(0);
+	}
+
+	/**
+	 * Checks the central directory for duplicate names, then walks the local
+	 * headers from the start of the file up to the central directory. Central
+	 * directory records whose local header was not reached by the walk are
+	 * checked individually. Returns true if anything was found.
+	 */
+	public boolean scan() throws IOException {
+		final int count = directory.size();
+		final byte[] cd = directory.getData();
+		final long end = directory.getDirectoryOffset();
+
+		final NameHashSet centralNames = new NameHashSet(count);
+		for (int i = 0; i < count; i++) {
+			budget.checkTime();
+			if (!centralNames.add(cd, directory.getNameOffset(i),
+					directory.getNameLength(i))
+					&& masterKey("Duplicate central directory entry "
+							+ directory.getName(i))) {
+				return true;
+			}
+		}
+
+		// Central directory records ordered by local header offset
+		final int[] sorted = directory.getIndicesByOffset();
+		final boolean[] visited = new boolean[count];
+		final NameHashSet localNames = new NameHashSet(count);
+
+		long pos = 0;
+		int next = 0;
+		while (pos + EntryVerifier.LOCAL_HEADER_SIZE <= end) {
+			budget.checkTime();
+			// Match this offset to its central directory record, if any
+			while (next < count
+					&& directory.getLocalHeaderOffset(sorted[next]) < pos) {
+				final int skipped = sorted[next];
+				if (!visited[skipped]) {
+					visited[skipped] = true;
+					if (extraField("Entry " + directory.getName(skipped)
+							+ " overlaps the data of a previous entry")) {
+						return true;
+					}
+				}
+				next++;
+			}
+			int index = -1;
+			if (next < count
+					&& directory.getLocalHeaderOffset(sorted[next]) == pos) {
+				index = sorted[next];
+			}
+			if (!fill(pos, EntryVerifier.LOCAL_HEADER_SIZE)
+					|| window.getInt(offset(pos)) != EntryVerifier.LOCAL_HEADER_SIGNATURE) {
+				if (index >= 0) {
+					visited[index] = true;
+					if (extraField("No local header for entry "
+							+ directory.getName(index))) {
+						return true;
+					}
+				}
+				// Padding or signing block; resume at the next known header
+				// past this offset. Records at this offset are checked below.
+				while (next < count
+						&& directory.getLocalHeaderOffset(sorted[next]) <= pos) {
+					next++;
+				}
+				if (next >= count) {
+					break;
+				}
+				pos = advance(pos, directory.getLocalHeaderOffset(sorted[next]));
+				continue;
+			}
+			final int header = offset(pos);
+			final int flags = window.getShort(header + 6) & 0xffff;
+			final int method = window.getShort(header + 8) & 0xffff;
+			final long crc = window.getInt(header + 14) & 0xffffffffL;
+			final long compressedSize = window.getInt(header + 18) & 0xffffffffL;
+			final long uncompressedSize = window.getInt(header + 22) & 0xffffffffL;
+			final int nameLength = window.getShort(header + 26) & 0xffff;
+			final short extraLength = window.getShort(header + 28);
+			if (extraLength < 0
+					&& extraField("Negative local extra length "
+							+ extraLength + " at offset " + pos)) {
+				return true;
+			}
+			if (!fill(pos, EntryVerifier.LOCAL_HEADER_SIZE + nameLength)) {
+				extraField("Truncated local header at offset " + pos);
+				break;
+			}
+			final byte[] bytes = window.array();
+			final int name = offset(pos) + EntryVerifier.LOCAL_HEADER_SIZE;
+			if (!localNames.add(bytes, name, nameLength)
+					&& masterKey("Duplicate local header at offset " + pos)) {
+				return true;
+			}
+			final long dataOffset = pos + EntryVerifier.LOCAL_HEADER_SIZE
+					+ nameLength + (extraLength & 0xffff);
+
+			long dataLength = compressedSize;
+			boolean zip64 = compressedSize == 0xffffffffL
+					|| uncompressedSize == 0xffffffffL;
+			if (index >= 0) {
+				visited[index] = true;
+				next++;
+				final String difference = compare(index, bytes, name,
+						nameLength, flags, method, crc, compressedSize,
+						uncompressedSize);
+				if (difference != null
+						&& extraField(difference + " for entry "
+								+ directory.getName(index))) {
+					return true;
+				}
+				dataLength = directory.getCompressedSize(index);
+				zip64 = zip64
+						|| directory.getCompressedSize(index) >= 0xffffffffL
+						|| directory.getUncompressedSize(index) >= 0xffffffffL;
+			} else if (!centralNames.contains(bytes, name, nameLength)
+					&& extraField("Local header at offset " + pos
+							+ " has no central directory entry")) {
+				return true;
+			}
+			if (index < 0
+					&& ((flags & FLAG_DATA_DESCRIPTOR) != 0 || zip64)) {
+				// Cannot tell where an unlisted entry's data ends
+				if (next >= count) {
+					break;
+				}
+				pos = advance(pos, directory.getLocalHeaderOffset(sorted[next]));
+				continue;
+			}
+			if (dataOffset + dataLength > end) {
+				extraField("Data of entry at offset " + pos
+						+ " overlaps the central directory");
+				break;
+			}
+			pos = advance(pos, dataOffset + dataLength);
+			if ((flags & FLAG_DATA_DESCRIPTOR) != 0) {
+				if (fill(pos, 4)
+						&& window.getInt(offset(pos)) == DATA_DESCRIPTOR_SIGNATURE) {
+					pos += 4;
+				}
+				pos += zip64 ? 20 : 12;
+			}
+		}
+
+		// Records that the walk did not reach
+		for (int i = 0; i < count; i++) {
+			if (visited[i]) {
+				continue;
+			}
+			budget.checkTime();
+			if (checkUnvisited(i, end)) {
+				return true;
+			}
+		}
+		return result.isVulnerable();
+	}
+
+	/**
+	 * Checks the local header of central directory record index on its own.
+	 * Returns true if scanning should stop.
+	 */
+	private boolean checkUnvisited(int index, long end) throws IOException {
+		final long offset = directory.getLocalHeaderOffset(index);
+		if (!fill(offset, EntryVerifier.LOCAL_HEADER_SIZE)
+				|| window.getInt(offset(offset)) != EntryVerifier.LOCAL_HEADER_SIGNATURE) {
+			return extraField("No local header for entry "
+					+ directory.getName(index));
+		}
+		final int header = offset(offset);
+		final int flags = window.getShort(header + 6) & 0xffff;
+		final int method = window.getShort(header + 8) & 0xffff;
+		final long crc = window.getInt(header + 14) & 0xffffffffL;
+		final long compressedSize = window.getInt(header + 18) & 0xffffffffL;
+		final long uncompressedSize = window.getInt(header + 22) & 0xffffffffL;
+		final int nameLength = window.getShort(header + 26) & 0xffff;
+		final short extraLength = window.getShort(header + 28);
+		if (extraLength < 0
+				&& extraField("Negative local extra length " + extraLength
+						+ " for entry " + directory.getName(index))) {
+			return true;
+		}
+		if (!fill(offset, EntryVerifier.LOCAL_HEADER_SIZE + nameLength)) {
+			return extraField("Truncated local header for entry "
+					+ directory.getName(index));
+		}
+		final String difference = compare(index, window.array(),
+				offset(offset) + EntryVerifier.LOCAL_HEADER_SIZE, nameLength,
+				flags, method, crc, compressedSize, uncompressedSize);
+		if (difference != null
+				&& extraField(difference + " for entry "
+						+ directory.getName(index))) {
+			return true;
+		}
+		if (offset + EntryVerifier.LOCAL_HEADER_SIZE + nameLength
+				+ (extraLength & 0xffff) + directory.getCompressedSize(index) > end) {
+			return extraField("Data of entry " + directory.getName(index)
+					+ " overlaps the central directory");
+		}
+		return false;
+	}
+
+	/**
+	 * Returns next, the offset the walk moves to from pos. Throws if it does
+	 * not lie past pos, so that no archive can make the walk loop.
+	 */
+	private static long advance(long pos, long next) throws ZipException {
+		if (next <= pos) {
+			throw new ZipException("Local header walk does not advance at offset "
+					+ pos);
+		}
+		return next;
+	}
+
+	/** Records a MasterKey finding. Returns true if scanning should stop. */
+	private boolean masterKey(String detail) {
+		result.addMasterKey(detail);
+		return stopAtFirst;
+	}
+
+	/** Records an ExtraField finding. Returns true if scanning should stop. */
+	private boolean extraField(String detail) {
+		result.addExtraField(detail);
+		return stopAtFirst;
+	}
+
+	/**
+	 * Compares a local header with central directory record index. Returns a
+	 * description of the first difference, or null if they agree. Names are
+	 * compared as raw bytes, and no String is made for an entry that agrees.
+	 */
+	private String compare(int index, byte[] bytes, int name, int nameLength,
+			int flags, int method, long crc, long compressedSize,
+			long uncompressedSize) {
+		if (nameLength != directory.getNameLength(index)) {
+			return "Local name length differs";
+		}
+		final byte[] cd = directory.getData();
+		final int cdName = directory.getNameOffset(index);
+		for (int i = 0; i < nameLength; i++) {
+			if (bytes[name + i] != cd[cdName + i]) {
+				return "Local name differs";
+			}
+		}
+		if (method != directory.getMethod(index)) {
+			return "Local compression method differs";
+		}
+		if ((flags & FLAG_DATA_DESCRIPTOR) != 0) {
+			// CRC and sizes follow the data instead
+			return null;
+		}
+		if (crc != directory.getCrc(index)) {
+			return "Local CRC differs";
+		}
+		if (compressedSize != 0xffffffffL
+				&& compressedSize != directory.getCompressedSize(index)) {
+			return "Local compressed size differs";
+		}
+		if (uncompressedSize != 0xffffffffL
+				&& uncompressedSize != directory.getUncompressedSize(index)) {
+			return "Local uncompressed size differs";
+		}
+		return null;
+	}
+
+	/**
+	 * Makes sure bytes [position, position + length) are in the window.
+	 * Returns false if they lie beyond the end of the file.
+	 */
+	private boolean fill(long position, int length) throws IOException {
+		if (position >= windowStart
+				&& position + length <= windowStart + window.limit()) {
+			return true;
+		}
+		window.clear();
+		windowStart = position;
+		final long size = source.size();
+		final int want = (int) Math.min(window.capacity(), size - position);
+		if (want < length) {
+			window.limit(0);
+			return false;
+		}
+		window.limit(want);
+		while (window.hasRemaining()) {
+			if (source.read(window, windowStart + window.position()) < 0) {
+				break;
+			}
+		}
+		window.limit(window.position());
+		return window.limit() >= length;
+	}
+
+	private int offset(long position) {
+		return (int) (position - windowStart);
+	}
+}
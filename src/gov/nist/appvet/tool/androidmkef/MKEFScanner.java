@@ -19,82 +19,170 @@
  */
 package gov.nist.appvet.tool.androidmkef;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.zip.CRC32;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
+import gov.nist.appvet.tool.androidmkef.util.Metrics;
+
+/**
+ * This class scans an APK for the Android MasterKey and ExtraField
+ * vulnerabilities in a single pass over its central directory and local
+ * headers.
+ */
 public class MKEFScanner {
-	ZipFile apkFile = null;
+	RandomAccessFile apkRaf = null;
+	ApkSource apkSource = null;
+	CentralDirectory centralDirectory = null;
+	String openError = null;
+	int parallelism = 1;
+	boolean verifyCrc = true;
 
 	public MKEFScanner(String apkPath) {
+		this(apkPath, 1, true);
+	}
+
+	/**
+	 * Creates a scanner that verifies entries on up to the given number of
+	 * threads. A parallelism of 1 verifies entries on the calling thread. If
+	 * verifyCrc is false, scan() relies on header checks alone and never
+	 * decompresses entry data.
+	 */
+	public MKEFScanner(String apkPath, int parallelism, boolean verifyCrc) {
+		this.parallelism = parallelism;
+		this.verifyCrc = verifyCrc;
 		try {
-			apkFile = new ZipFile(apkPath);
+			apkRaf = new RandomAccessFile(apkPath, "r");
+			apkSource = new FileApkSource(apkRaf.getChannel());
+			centralDirectory = CentralDirectory.read(apkSource);
 		} catch (IOException e) {
 			e.printStackTrace();
+			openError = e.toString();
 		}
 	}
 
-	public boolean hasMasterKey() {
-		Enumeration<? extends ZipEntry> apkFileEntries = apkFile.entries();
-		ArrayList<String> entries = new ArrayList<String>();
-
-		while (apkFileEntries.hasMoreElements()) {
-			String entry = apkFileEntries.nextElement().toString();
-			if (!entries.contains(entry)) {
-				entries.add(entry);
-			} else {
-				// Duplicate found
-				return true;
-			}
+	/** Creates a scanner over an APK held in memory. */
+	public MKEFScanner(ByteBuffer apkBytes, int parallelism, boolean verifyCrc) {
+		this.parallelism = parallelism;
+		this.verifyCrc = verifyCrc;
+		try {
+			apkSource = new MemoryApkSource(apkBytes);
+			centralDirectory = CentralDirectory.read(apkSource);
+		} catch (IOException e) {
+			e.printStackTrace();
+			openError = e.toString();
 		}
-		return false;
 	}
 
-	public boolean hasExtraField() {
-		Enumeration<? extends ZipEntry> apkFileEntries = apkFile.entries();
+	/**
+	 * Runs both checks in one pass. The local headers are walked once and
+	 * cross-checked against the central directory, which finds duplicate
+	 * names (MasterKey) as well as negative extra lengths and other header
+	 * inconsistencies (ExtraField). If verifyCrc is set, entry data is then
+	 * checked against the CRCs in the central directory in file-offset order,
+	 * streamed through the calling thread's pooled EntryVerifier or, if
+	 * parallelism is greater than 1, through ParallelVerifier. APK files are
+	 * memory-mapped so that STORED entries are checked without copying. In
+	 * fastVerdict mode the scan stops at the first finding.
+	 */
+	public ScanResult scan(boolean fastVerdict) {
+		return scan(fastVerdict, ScanBudget.unlimited());
+	}
+
+	/**
+	 * Same as scan(fastVerdict), but stops with an error as soon as the app
+	 * exceeds one of the limits of budget. The elapsed time is checked on
+	 * every local header and as entries are verified. Declared sizes are
+	 * checked before any data is inflated; the inflated total as entries are
+	 * verified.
+	 */
+	public ScanResult scan(boolean fastVerdict, ScanBudget budget) {
+		ScanResult result = new ScanResult();
+		if (centralDirectory == null) {
+			result.setError(openError);
+			return result;
+		}
 		try {
-			while (apkFileEntries.hasMoreElements()) {
-				ZipEntry entry = apkFileEntries.nextElement();
-				InputStream inputStream = apkFile.getInputStream(entry);
-				int numBytesRead;
-				byte[] byteArray = new byte[1024];
-				ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-				while ((numBytesRead = inputStream.read(byteArray, 0,
-						byteArray.length)) != -1) {
-					byteArrayOutputStream.write(byteArray, 0, numBytesRead);
-				}
-				if (inputStream != null) {
-					inputStream.close();
+			budget.checkEntries(centralDirectory.size());
+			LocalHeaderScanner headerScanner = new LocalHeaderScanner(
+					apkSource, centralDirectory, result, fastVerdict, budget);
+			if (headerScanner.scan() && fastVerdict) {
+				return result;
+			}
+			if (!verifyCrc || result.hasExtraField()) {
+				return result;
+			}
+			checkDeclaredSizes(budget);
+			if (apkSource instanceof FileApkSource) {
+				try {
+					((FileApkSource) apkSource).map();
+				} catch (IOException e) {
+					// Fall back to reading STORED entries through the buffer
+					e.printStackTrace();
 				}
-				byte[] bytes = byteArrayOutputStream.toByteArray();
-				CRC32 cs = new CRC32();
-				cs.update(bytes);
-				if (cs.getValue() != entry.getCrc()) {
-					return true;
+			}
+			if (parallelism > 1) {
+				if (ParallelVerifier.hasMismatch(apkSource, centralDirectory,
+						budget, parallelism)) {
+					result.addExtraField("Entry data does not match its CRC");
 				}
-				if (byteArrayOutputStream != null) {
-					byteArrayOutputStream.close();
+				return result;
+			}
+			// Visit entries in file order so that reads stay sequential
+			EntryVerifier verifier = EntryVerifier.get();
+			for (int i : centralDirectory.getIndicesByOffset()) {
+				if (!verifier.verify(apkSource, centralDirectory, i, budget,
+						null)) {
+					result.addExtraField("Data of entry "
+							+ centralDirectory.getName(i)
+							+ " does not match its CRC");
+					break;
 				}
 			}
-
+		} catch (ScanBudget.ExceededException e) {
+			Metrics.increment("scanBudget.exceeded." + e.getLimit());
+			result.setError(e.getMessage());
 		} catch (IOException e) {
 			e.printStackTrace();
+			result.setError(e.toString());
 		}
-		return false;
+		return result;
 	}
 
+	/**
+	 * Rejects an app whose central directory already declares more than the
+	 * budget allows, so that obvious zip bombs are never inflated.
+	 */
+	private void checkDeclaredSizes(ScanBudget budget)
+			throws ScanBudget.ExceededException {
+		long total = 0;
+		for (int i = 0; i < centralDirectory.size(); i++) {
+			if (centralDirectory.getMethod(i) == EntryVerifier.STORED) {
+				continue;
+			}
+			final long uncompressedSize = centralDirectory
+					.getUncompressedSize(i);
+			budget.checkRatio(centralDirectory.getName(i),
+					centralDirectory.getCompressedSize(i), uncompressedSize);
+			total += uncompressedSize;
+		}
+		budget.checkInflatedTotal(total);
+	}
+
+	/**
+	 * Unmaps and closes the APK file. The scanner must not be used
+	 * afterwards.
+	 */
 	public void close() {
-		if (apkFile != null) {
+		if (apkSource instanceof FileApkSource) {
+			((FileApkSource) apkSource).unmap();
+		}
+		if (apkRaf != null) {
 			try {
-				apkFile.close();
+				apkRaf.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,67 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * An APK held entirely in memory, for apps small enough that writing them to
+ * disk first would cost more than the scan itself.
+ */
+public class MemoryApkSource implements ApkSource {
+
+	private final ByteBuffer bytes;
+
+	public MemoryApkSource(ByteBuffer bytes) {
+		this.bytes = bytes.slice();
+	}
+
+	@Override
+	public long size() {
+		return bytes.capacity();
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) {
+		if (position >= bytes.capacity()) {
+			return -1;
+		}
+		final ByteBuffer view = bytes.duplicate();
+		view.position((int) position);
+		view.limit((int) Math.min(bytes.capacity(), position + dst.remaining()));
+		final int n = view.remaining();
+		dst.put(view);
+		return n;
+	}
+
+	@Override
+	public boolean canUpdateCrc() {
+		return true;
+	}
+
+	@Override
+	public void updateCrc(CRC32 crc, long position, long length) {
+		final ByteBuffer view = bytes.duplicate();
+		view.limit((int) (position + length));
+		view.position((int) position);
+		crc.update(view);
+	}
+}
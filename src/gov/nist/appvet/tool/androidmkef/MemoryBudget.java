@@ -0,0 +1,88 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import gov.nist.appvet.tool.androidmkef.util.Metrics;
+
+/**
+ * This class admits scans only while the heap they are predicted to need
+ * fits in a fixed budget. A scan that does not fit waits until running scans
+ * release enough; a scan larger than the whole budget runs alone. This
+ * replaces forcing a full collection after every app.
+ */
+public class MemoryBudget {
+
+	private static MemoryBudget instance = null;
+
+	private final long budget;
+	private long reserved = 0;
+
+	/** Returns the shared budget, created on first use. */
+	public static synchronized MemoryBudget getInstance() {
+		if (instance == null) {
+			long budget = Properties.memoryBudget;
+			if (budget <= 0) {
+				// Default to half of the maximum heap
+				budget = Runtime.getRuntime().maxMemory() / 2;
+			}
+			instance = new MemoryBudget(budget);
+		}
+		return instance;
+	}
+
+	public MemoryBudget(long budget) {
+		this.budget = budget;
+		Metrics.set("memory.budget", budget);
+	}
+
+	/** Waits until bytes fit in the budget, then reserves them. */
+	public synchronized void reserve(long bytes) {
+		if (!fits(bytes)) {
+			Metrics.increment("memory.deferred");
+			final long start = System.nanoTime();
+			boolean interrupted = false;
+			while (!fits(bytes)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			Metrics.add("memory.deferredMillis",
+					(System.nanoTime() - start) / 1000000L);
+		}
+		reserved += bytes;
+		Metrics.set("memory.reserved", reserved);
+	}
+
+	/** Releases bytes reserved by reserve(). */
+	public synchronized void release(long bytes) {
+		reserved -= bytes;
+		Metrics.set("memory.reserved", reserved);
+		notifyAll();
+	}
+
+	private boolean fits(long bytes) {
+		return reserved == 0 || reserved + bytes <= budget;
+	}
+}
@@ -0,0 +1,157 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An open-addressing hash set over raw entry name bytes. Names are copied into
+ * a single byte arena and the table holds only int references, so memory is
+ * bounded by the total name length plus a few ints per entry and no String or
+ * entry objects are created while checking for duplicates. Each set hashes
+ * with its own random seed, so that an APK cannot be crafted with names that
+ * all collide.
+ */
+public class NameHashSet {
+
+	private static final int EMPTY = 0;
+	private final int seed = ThreadLocalRandom.current().nextInt();
+	private int[] table;
+	private int[] hashes;
+	private int[] starts;
+	private int[] lengths;
+	private byte[] arena;
+	private int arenaSize = 0;
+	private int size = 0;
+	private int mask;
+
+	public NameHashSet(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		table = new int[capacity];
+		mask = capacity - 1;
+		final int slots = Math.max(expectedSize, 8);
+		hashes = new int[slots];
+		starts = new int[slots];
+		lengths = new int[slots];
+		arena = new byte[slots * 32];
+	}
+
+	/**
+	 * Adds the name held in buf[offset, offset + length). Returns false if an
+	 * identical name was already present.
+	 */
+	public boolean add(byte[] buf, int offset, int length) {
+		final int hash = hash(buf, offset, length);
+		int slot = hash & mask;
+		int ref;
+		while ((ref = table[slot]) != EMPTY) {
+			final int i = ref - 1;
+			if (hashes[i] == hash && lengths[i] == length
+					&& equal(buf, offset, starts[i], length)) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (size == hashes.length) {
+			final int newLength = hashes.length * 2;
+			hashes = Arrays.copyOf(hashes, newLength);
+			starts = Arrays.copyOf(starts, newLength);
+			lengths = Arrays.copyOf(lengths, newLength);
+		}
+		if (arenaSize + length > arena.length) {
+			arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize
+					+ length));
+		}
+		System.arraycopy(buf, offset, arena, arenaSize, length);
+		hashes[size] = hash;
+		starts[size] = arenaSize;
+		lengths[size] = length;
+		arenaSize += length;
+		size++;
+		table[slot] = size;
+		if (size * 2 > table.length) {
+			rehash();
+		}
+		return true;
+	}
+
+	public boolean contains(byte[] buf, int offset, int length) {
+		final int hash = hash(buf, offset, length);
+		int slot = hash & mask;
+		int ref;
+		while ((ref = table[slot]) != EMPTY) {
+			final int i = ref - 1;
+			if (hashes[i] == hash && lengths[i] == length
+					&& equal(buf, offset, starts[i], length)) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void rehash() {
+		table = new int[table.length * 2];
+		mask = table.length - 1;
+		for (int i = 0; i < size; i++) {
+			int slot = hashes[i] & mask;
+			while (table[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = i + 1;
+		}
+	}
+
+	private boolean equal(byte[] buf, int offset, int start, int length) {
+		for (int i = 0; i < length; i++) {
+			if (buf[offset + i] != arena[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * FNV-1a from a seeded offset basis, followed by a final mix that also
+	 * takes in the seed, so that low bits are well spread.
+	 */
+	private int hash(byte[] buf, int offset, int length) {
+		int h = 0x811c9dc5 ^ seed;
+		for (int i = offset; i < offset + length; i++) {
+			h ^= buf[i] & 0xff;
+			h *= 0x01000193;
+		}
+		h ^= length ^ Integer.rotateLeft(seed, 16);
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
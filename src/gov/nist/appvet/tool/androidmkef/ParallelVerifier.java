@@ -0,0 +1,135 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class verifies entry CRCs in parallel by splitting the entries, in
+ * file-offset order, into fork-join tasks. Each task reads its own region of
+ * the APK with positional reads on the shared source, and all remaining tasks
+ * stop as soon as one of them finds a mismatch. hasMismatch returns only once
+ * every task has ended, so the source can be closed right after.
+ */
+public class ParallelVerifier {
+
+	/** Ranges of at most this many entries are verified in one task. */
+	private static final int LEAF_SIZE = 32;
+	private static ForkJoinPool pool = null;
+
+	private ParallelVerifier() {
+	}
+
+	/**
+	 * Returns the shared pool. The pool is created on first use with the
+	 * given parallelism cap.
+	 */
+	private static synchronized ForkJoinPool getPool(int parallelism) {
+		if (pool == null) {
+			pool = new ForkJoinPool(parallelism);
+		}
+		return pool;
+	}
+
+	/**
+	 * Returns true if any entry's data does not match its CRC. Throws
+	 * ScanBudget.ExceededException if the shared budget runs out.
+	 */
+	public static boolean hasMismatch(ApkSource source,
+			CentralDirectory directory, ScanBudget budget, int parallelism)
+			throws IOException {
+		final AtomicBoolean found = new AtomicBoolean(false);
+		final int[] order = directory.getIndicesByOffset();
+		try {
+			return getPool(parallelism).invoke(
+					new VerifyTask(source, directory, budget, order, 0,
+							order.length, found)).booleanValue();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static class VerifyTask extends RecursiveTask<Boolean> {
+
+		private static final long serialVersionUID = 1L;
+		private final ApkSource source;
+		private final CentralDirectory directory;
+		private final ScanBudget budget;
+		private final int[] order;
+		private final int start;
+		private final int end;
+		private final AtomicBoolean found;
+
+		VerifyTask(ApkSource source, CentralDirectory directory,
+				ScanBudget budget, int[] order, int start, int end,
+				AtomicBoolean found) {
+			this.source = source;
+			this.directory = directory;
+			this.budget = budget;
+			this.order = order;
+			this.start = start;
+			this.end = end;
+			this.found = found;
+		}
+
+		@Override
+		protected Boolean compute() {
+			if (found.get()) {
+				return Boolean.FALSE;
+			}
+			if (end - start > LEAF_SIZE) {
+				final int middle = (start + end) >>> 1;
+				final VerifyTask left = new VerifyTask(source, directory,
+						budget, order, start, middle, found);
+				final VerifyTask right = new VerifyTask(source, directory,
+						budget, order, middle, end, found);
+				left.fork();
+				final boolean rightFound;
+				try {
+					rightFound = right.compute().booleanValue();
+				} catch (RuntimeException e) {
+					// Never return while a task may still read the source
+					left.quietlyJoin();
+					throw e;
+				}
+				final boolean leftFound = left.join().booleanValue();
+				return Boolean.valueOf(rightFound || leftFound);
+			}
+			final EntryVerifier verifier = EntryVerifier.get();
+			try {
+				for (int i = start; i < end && !found.get(); i++) {
+					if (!verifier.verify(source, directory, order[i], budget,
+							found)) {
+						found.set(true);
+						return Boolean.TRUE;
+					}
+				}
+			} catch (IOException e) {
+				found.set(true);
+				throw new UncheckedIOException(e);
+			}
+			return Boolean.FALSE;
+		}
+	}
+}
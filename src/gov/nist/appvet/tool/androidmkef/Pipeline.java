@@ -0,0 +1,73 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+/**
+ * The stages an asynchronous job passes through after it has been scanned
+ * on a JobQueue worker: rendering the report, converting it to PDF and
+ * delivering it to AppVet. Each stage has its own workers and bounded queue,
+ * so that slow I/O in one stage does not hold up scanning until that stage's
+ * queue is full.
+ */
+public class Pipeline {
+
+	private static Pipeline instance = null;
+
+	private final PipelineStage render;
+	private final PipelineStage pdf;
+	private final PipelineStage deliver;
+
+	/** Returns the shared pipeline, created on first use. */
+	public static synchronized Pipeline getInstance() {
+		if (instance == null) {
+			instance = new Pipeline(Properties.renderWorkers,
+					Properties.pdfWorkers, Properties.deliverWorkers,
+					Properties.stageCapacity, Properties.virtualThreads);
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates the stages. If virtualThreads is set, the pdf and deliver
+	 * stages, which wait on external processes and on AppVet, run on
+	 * virtual threads where the JDK supports them.
+	 */
+	public Pipeline(int renderWorkers, int pdfWorkers, int deliverWorkers,
+			int stageCapacity, boolean virtualThreads) {
+		render = new PipelineStage("render", renderWorkers, stageCapacity,
+				false);
+		pdf = new PipelineStage("pdf", pdfWorkers, stageCapacity,
+				virtualThreads);
+		deliver = new PipelineStage("deliver", deliverWorkers, stageCapacity,
+				virtualThreads);
+	}
+
+	public PipelineStage getRender() {
+		return render;
+	}
+
+	public PipelineStage getPdf() {
+		return pdf;
+	}
+
+	public PipelineStage getDeliver() {
+		return deliver;
+	}
+}
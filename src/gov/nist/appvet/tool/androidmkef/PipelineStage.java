@@ -0,0 +1,117 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import gov.nist.appvet.tool.androidmkef.util.Logger;
+import gov.nist.appvet.tool.androidmkef.util.Metrics;
+import gov.nist.appvet.tool.androidmkef.util.Threads;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * One stage of the asynchronous pipeline: a fixed number of worker threads
+ * serving a bounded queue. When the queue is full, submit() blocks the
+ * caller, which is the previous stage's worker, so a slow stage holds back
+ * the stages before it instead of buffering without bound.
+ */
+public class PipelineStage {
+
+	private static final Logger log = Properties.log;
+
+	private final String name;
+	private final BlockingQueue<Task> queue;
+
+	private static class Task {
+		final Job job;
+		final Runnable runnable;
+		final long queuedNanos = System.nanoTime();
+
+		Task(Job job, Runnable runnable) {
+			this.job = job;
+			this.runnable = runnable;
+		}
+	}
+
+	/**
+	 * Creates a stage with the given number of workers. If virtual is set,
+	 * the workers are virtual threads where the JDK supports them, so that
+	 * stages that mostly wait on I/O can have many workers cheaply.
+	 */
+	public PipelineStage(String name, int workers, int capacity,
+			boolean virtual) {
+		this.name = name;
+		this.queue = new ArrayBlockingQueue<Task>(capacity);
+		for (int i = 1; i <= workers; i++) {
+			Threads.start("mkef-" + name + "-" + i, new Runnable() {
+				public void run() {
+					work();
+				}
+			}, virtual);
+		}
+		Metrics.set("stage." + name + ".workers", workers);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Queues task for the given job, waiting while this stage's queue is
+	 * full. Returns false if interrupted while waiting.
+	 */
+	public boolean submit(Job job, Runnable task) {
+		final long start = System.nanoTime();
+		try {
+			queue.put(new Task(job, task));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		final long blockedMillis = (System.nanoTime() - start) / 1000000L;
+		if (blockedMillis > 0) {
+			Metrics.add("stage." + name + ".blockedMillis", blockedMillis);
+		}
+		Metrics.set("stage." + name + ".depth", queue.size());
+		return true;
+	}
+
+	private void work() {
+		while (true) {
+			final Task task;
+			try {
+				task = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			Metrics.set("stage." + name + ".depth", queue.size());
+			Metrics.add("stage." + name + ".waitMillis",
+					(System.nanoTime() - task.queuedNanos) / 1000000L);
+			try {
+				task.runnable.run();
+			} catch (RuntimeException e) {
+				log.error("Error in " + name + " stage of " + task.job + ": "
+						+ e.toString());
+			} finally {
+				Metrics.increment("stage." + name + ".completed");
+			}
+		}
+	}
+}
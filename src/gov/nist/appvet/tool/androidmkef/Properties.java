@@ -20,12 +20,14 @@
 package gov.nist.appvet.tool.androidmkef;
 
 import gov.nist.appvet.tool.androidmkef.util.Logger;
+import gov.nist.appvet.tool.androidmkef.util.Threads;
 import gov.nist.appvet.tool.androidmkef.util.ToolStatus;
 import gov.nist.appvet.tool.androidmkef.util.Xml;
 import gov.nist.appvet.tool.androidmkef.util.LogMaintainer;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * This class reads in property values defined in ToolProperties.xml as well as
@@ -48,7 +50,35 @@ public class Properties {
 	public static String protocol = null;
 	public static boolean keepApps = false;
 	public static String htmlToPdfCommand = null;
+	public static final String PDF_RENDERER_BUILTIN = "BUILTIN";
+	public static final String PDF_RENDERER_COMMAND = "COMMAND";
+	public static String pdfRenderer = PDF_RENDERER_BUILTIN;
 	public static int commandTimeout = 0;
+	public static int processMaxConcurrent = 0;
+	public static int processMaxOutputBytes = 65536;
+	public static int scanParallelism = 1;
+	public static boolean verifyCrc = true;
+	public static boolean fastVerdict = true;
+	public static int verdictCacheSize = 0;
+	public static int inMemoryMaxSize = 0;
+	public static long budgetMaxEntries = 0;
+	public static long budgetMaxInflatedBytes = 0;
+	public static long budgetMaxCompressionRatio = 0;
+	public static long budgetMaxScanMillis = 0;
+	public static int queueWorkers = 1;
+	public static int queueCapacity = 100;
+	public static int queueRetryAfter = 30;
+	public static long schedulerAgingBytesPerSecond = 0;
+	public static int renderWorkers = 1;
+	public static int pdfWorkers = 1;
+	public static int deliverWorkers = 1;
+	public static int stageCapacity = 50;
+	public static boolean virtualThreads = false;
+	public static int statusTtlSeconds = 3600;
+	public static int statusMaxEntries = 10000;
+	public static long memoryBudget = 0;
+	public static HashMap<String, Integer> schedulerWeights = new HashMap<String, Integer>();
+	public static boolean journalEnabled = false;
 	public static String reportFormat = null;
 	public static String serviceUrl = null;
 	public static Logger log = null;
@@ -58,6 +88,8 @@ public class Properties {
 	public static String TEMP_DIR = null;
 	public static String CONF_DIR = null;
 	public static String LOGS_DIR = null;
+	public static String CACHE_DIR = null;
+	public static String JOURNAL_DIR = null;
 	public static ToolStatus defaultStatus = null;
 	public static ArrayList<String> lowResults = null;
 	public static ArrayList<String> moderateResults = null;
@@ -91,6 +123,9 @@ public class Properties {
 			//System.out.println("Created apps directory for MKEF");
 		}
 
+		CACHE_DIR = ANDROID_MKEF_FILES_HOME + "/cache";
+		JOURNAL_DIR = ANDROID_MKEF_FILES_HOME + "/journal";
+
 		CONF_DIR = ANDROID_MKEF_FILES_HOME + "/conf";
 		if (!new File(CONF_DIR).exists()) {
 			System.err
@@ -129,6 +164,13 @@ public class Properties {
 		serviceUrl = xml.getXPathValue("/Tool/ServiceURL");
 		log.info("/Tool/ServiceURL: " + serviceUrl);
 
+		// Keep apps and reports after processing
+		String keepAppsStr = xml.getXPathValue("/Tool/KeepApps");
+		if (keepAppsStr != null) {
+			keepApps = new Boolean(keepAppsStr).booleanValue();
+		}
+		log.info("/Tool/KeepApps: " + keepApps);
+
 		// AppVet protocol
 		protocol = xml.getXPathValue("/Tool/AppVetProtocol");
 		log.info("/Tool/AppVetProtocol: " + protocol);
@@ -142,10 +184,221 @@ public class Properties {
 		commandTimeout = new Integer(cmdTimeoutStr).intValue();
 		log.info("/Tool/CommandTimeout: " + commandTimeout);
 
+		// External processes run at once (0 uses all processors)
+		String processMaxConcurrentStr = xml
+				.getXPathValue("/Tool/Process/MaxConcurrent");
+		if (processMaxConcurrentStr != null) {
+			processMaxConcurrent = new Integer(processMaxConcurrentStr)
+					.intValue();
+		}
+		log.info("/Tool/Process/MaxConcurrent: " + processMaxConcurrent);
+
+		// Bytes of each output stream kept per external process
+		String processMaxOutputBytesStr = xml
+				.getXPathValue("/Tool/Process/MaxOutputBytes");
+		if (processMaxOutputBytesStr != null) {
+			processMaxOutputBytes = new Integer(processMaxOutputBytesStr)
+					.intValue();
+		}
+		log.info("/Tool/Process/MaxOutputBytes: " + processMaxOutputBytes);
+
+		// Maximum number of threads used to verify entries of a single app
+		String scanParallelismStr = xml
+				.getXPathValue("/Tool/Scan/Parallelism");
+		if (scanParallelismStr != null) {
+			scanParallelism = new Integer(scanParallelismStr).intValue();
+		}
+		if (scanParallelism < 1) {
+			scanParallelism = Runtime.getRuntime().availableProcessors();
+		}
+		log.info("/Tool/Scan/Parallelism: " + scanParallelism);
+
+		// Inflate and CRC-check entries when local headers are consistent
+		String verifyCrcStr = xml.getXPathValue("/Tool/Scan/VerifyCrc");
+		if (verifyCrcStr != null) {
+			verifyCrc = new Boolean(verifyCrcStr).booleanValue();
+		}
+		log.info("/Tool/Scan/VerifyCrc: " + verifyCrc);
+
+		// Stop scanning at the first confirmed finding
+		String fastVerdictStr = xml.getXPathValue("/Tool/Scan/FastVerdict");
+		if (fastVerdictStr != null) {
+			fastVerdict = new Boolean(fastVerdictStr).booleanValue();
+		}
+		log.info("/Tool/Scan/FastVerdict: " + fastVerdict);
+
+		// Apps up to this many bytes are scanned in memory (0 disables)
+		String inMemoryMaxSizeStr = xml
+				.getXPathValue("/Tool/Scan/InMemoryMaxSize");
+		if (inMemoryMaxSizeStr != null) {
+			inMemoryMaxSize = new Integer(inMemoryMaxSizeStr).intValue();
+		}
+		log.info("/Tool/Scan/InMemoryMaxSize: " + inMemoryMaxSize);
+
+		// Per-app scan limits (0 means unlimited)
+		String budgetMaxEntriesStr = xml
+				.getXPathValue("/Tool/Scan/Budget/MaxEntries");
+		if (budgetMaxEntriesStr != null) {
+			budgetMaxEntries = new Long(budgetMaxEntriesStr).longValue();
+		}
+		log.info("/Tool/Scan/Budget/MaxEntries: " + budgetMaxEntries);
+		String budgetMaxInflatedBytesStr = xml
+				.getXPathValue("/Tool/Scan/Budget/MaxInflatedBytes");
+		if (budgetMaxInflatedBytesStr != null) {
+			budgetMaxInflatedBytes = new Long(budgetMaxInflatedBytesStr)
+					.longValue();
+		}
+		log.info("/Tool/Scan/Budget/MaxInflatedBytes: "
+				+ budgetMaxInflatedBytes);
+		String budgetMaxCompressionRatioStr = xml
+				.getXPathValue("/Tool/Scan/Budget/MaxCompressionRatio");
+		if (budgetMaxCompressionRatioStr != null) {
+			budgetMaxCompressionRatio = new Long(budgetMaxCompressionRatioStr)
+					.longValue();
+		}
+		log.info("/Tool/Scan/Budget/MaxCompressionRatio: "
+				+ budgetMaxCompressionRatio);
+		String budgetMaxScanMillisStr = xml
+				.getXPathValue("/Tool/Scan/Budget/MaxScanMillis");
+		if (budgetMaxScanMillisStr != null) {
+			budgetMaxScanMillis = new Long(budgetMaxScanMillisStr).longValue();
+		}
+		log.info("/Tool/Scan/Budget/MaxScanMillis: " + budgetMaxScanMillis);
+
+		// Worker threads and queue size for asynchronous jobs
+		String queueWorkersStr = xml.getXPathValue("/Tool/Queue/Workers");
+		if (queueWorkersStr != null) {
+			queueWorkers = new Integer(queueWorkersStr).intValue();
+		}
+		if (queueWorkers < 1) {
+			queueWorkers = Runtime.getRuntime().availableProcessors();
+		}
+		log.info("/Tool/Queue/Workers: " + queueWorkers);
+		String queueCapacityStr = xml.getXPathValue("/Tool/Queue/Capacity");
+		if (queueCapacityStr != null) {
+			queueCapacity = new Integer(queueCapacityStr).intValue();
+		}
+		log.info("/Tool/Queue/Capacity: " + queueCapacity);
+		String queueRetryAfterStr = xml
+				.getXPathValue("/Tool/Queue/RetryAfter");
+		if (queueRetryAfterStr != null) {
+			queueRetryAfter = new Integer(queueRetryAfterStr).intValue();
+		}
+		log.info("/Tool/Queue/RetryAfter: " + queueRetryAfter);
+
+		// Workers and queue size of the stages after scanning
+		String renderWorkersStr = xml
+				.getXPathValue("/Tool/Pipeline/RenderWorkers");
+		if (renderWorkersStr != null) {
+			renderWorkers = new Integer(renderWorkersStr).intValue();
+		}
+		log.info("/Tool/Pipeline/RenderWorkers: " + renderWorkers);
+		String pdfWorkersStr = xml.getXPathValue("/Tool/Pipeline/PdfWorkers");
+		if (pdfWorkersStr != null) {
+			pdfWorkers = new Integer(pdfWorkersStr).intValue();
+		}
+		log.info("/Tool/Pipeline/PdfWorkers: " + pdfWorkers);
+		String deliverWorkersStr = xml
+				.getXPathValue("/Tool/Pipeline/DeliverWorkers");
+		if (deliverWorkersStr != null) {
+			deliverWorkers = new Integer(deliverWorkersStr).intValue();
+		}
+		log.info("/Tool/Pipeline/DeliverWorkers: " + deliverWorkers);
+		String stageCapacityStr = xml
+				.getXPathValue("/Tool/Pipeline/StageCapacity");
+		if (stageCapacityStr != null) {
+			stageCapacity = new Integer(stageCapacityStr).intValue();
+		}
+		log.info("/Tool/Pipeline/StageCapacity: " + stageCapacity);
+		String virtualThreadsStr = xml
+				.getXPathValue("/Tool/Pipeline/VirtualThreads");
+		if (virtualThreadsStr != null) {
+			virtualThreads = new Boolean(virtualThreadsStr).booleanValue();
+		}
+		if (virtualThreads && !Threads.isVirtualAvailable()) {
+			log.warn("Virtual threads need Java 21 or later; "
+					+ "using platform threads");
+			virtualThreads = false;
+		}
+		log.info("/Tool/Pipeline/VirtualThreads: " + virtualThreads);
+
+		// Cost credit a queued job earns per second, and submitter weights
+		String agingStr = xml
+				.getXPathValue("/Tool/Scheduler/AgingBytesPerSecond");
+		if (agingStr != null) {
+			schedulerAgingBytesPerSecond = new Long(agingStr).longValue();
+		}
+		log.info("/Tool/Scheduler/AgingBytesPerSecond: "
+				+ schedulerAgingBytesPerSecond);
+		ArrayList<String> weightStrs = xml
+				.getXPathValues("/Tool/Scheduler/Weight");
+		if (weightStrs != null) {
+			for (String weightStr : weightStrs) {
+				int equals = weightStr.lastIndexOf('=');
+				if (equals > 0) {
+					schedulerWeights.put(weightStr.substring(0, equals).trim(),
+							new Integer(weightStr.substring(equals + 1)
+									.trim()));
+				}
+			}
+		}
+		log.info("/Tool/Scheduler/Weight: " + schedulerWeights);
+
+		// Seconds the status of a finished job remains available
+		String statusTtlStr = xml.getXPathValue("/Tool/Status/TtlSeconds");
+		if (statusTtlStr != null) {
+			statusTtlSeconds = new Integer(statusTtlStr).intValue();
+		}
+		log.info("/Tool/Status/TtlSeconds: " + statusTtlSeconds);
+		String statusMaxEntriesStr = xml
+				.getXPathValue("/Tool/Status/MaxEntries");
+		if (statusMaxEntriesStr != null) {
+			statusMaxEntries = new Integer(statusMaxEntriesStr).intValue();
+		}
+		log.info("/Tool/Status/MaxEntries: " + statusMaxEntries);
+
+		// Journal asynchronous jobs so that they survive a restart
+		String journalEnabledStr = xml.getXPathValue("/Tool/Journal/Enabled");
+		if (journalEnabledStr != null) {
+			journalEnabled = new Boolean(journalEnabledStr).booleanValue();
+		}
+		log.info("/Tool/Journal/Enabled: " + journalEnabled);
+
+		// Heap that running scans may reserve (0 uses half the heap)
+		String memoryBudgetStr = xml.getXPathValue("/Tool/Scan/MemoryBudget");
+		if (memoryBudgetStr != null) {
+			memoryBudget = new Long(memoryBudgetStr).longValue();
+		}
+		log.info("/Tool/Scan/MemoryBudget: " + memoryBudget);
+
+		// Number of verdicts kept by the verdict cache (0 disables it)
+		String verdictCacheSizeStr = xml
+				.getXPathValue("/Tool/VerdictCache/Size");
+		if (verdictCacheSizeStr != null) {
+			verdictCacheSize = new Integer(verdictCacheSizeStr).intValue();
+		}
+		log.info("/Tool/VerdictCache/Size: " + verdictCacheSize);
+
 		// Get report format
 		reportFormat = xml.getXPathValue("/Tool/Report/Format");
+		if (reportFormat != null) {
+			reportFormat = reportFormat.trim().toUpperCase();
+		}
 		log.info("/Tool/Report/Format: " + reportFormat);
 
+		// Renderer of PDF reports: BUILTIN or COMMAND (HtmlToPdfCmd)
+		String pdfRendererStr = xml.getXPathValue("/Tool/Report/PdfRenderer");
+		if (pdfRendererStr != null && !pdfRendererStr.isEmpty()) {
+			pdfRenderer = pdfRendererStr.trim().toUpperCase();
+		}
+		if (!pdfRenderer.equals(PDF_RENDERER_BUILTIN)
+				&& !pdfRenderer.equals(PDF_RENDERER_COMMAND)) {
+			log.warn("Unknown PDF renderer " + pdfRenderer + ", using "
+					+ PDF_RENDERER_BUILTIN);
+			pdfRenderer = PDF_RENDERER_BUILTIN;
+		}
+		log.info("/Tool/Report/PdfRenderer: " + pdfRenderer);
+
 		// Get result categories
 		String defaultStatusString = xml
 				.getXPathValue("/Tool/Report/Result/DefaultStatus");
@@ -0,0 +1,131 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-scan resource limits that guard against zip bombs and other hostile
+ * archives: number of entries, total inflated bytes, compression ratio and
+ * wall-clock time. A limit of 0 means unlimited. One budget may be shared by
+ * the threads of a parallel scan.
+ */
+public class ScanBudget {
+
+	public static final String ENTRIES = "entries";
+	public static final String INFLATED_BYTES = "inflatedBytes";
+	public static final String COMPRESSION_RATIO = "compressionRatio";
+	public static final String SCAN_TIME = "scanTime";
+
+	private final long maxEntries;
+	private final long maxInflatedBytes;
+	private final long maxCompressionRatio;
+	private final long maxScanMillis;
+	private final long startNanos;
+	private final AtomicLong inflatedBytes = new AtomicLong();
+
+	/** Thrown when a scan exceeds one of its limits. */
+	public static class ExceededException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+		private final String limit;
+
+		public ExceededException(String limit, String message) {
+			super(message);
+			this.limit = limit;
+		}
+
+		/** Name of the exceeded limit, e.g. ScanBudget.ENTRIES. */
+		public String getLimit() {
+			return limit;
+		}
+	}
+
+	public ScanBudget(long maxEntries, long maxInflatedBytes,
+			long maxCompressionRatio, long maxScanMillis) {
+		this.maxEntries = maxEntries;
+		this.maxInflatedBytes = maxInflatedBytes;
+		this.maxCompressionRatio = maxCompressionRatio;
+		this.maxScanMillis = maxScanMillis;
+		this.startNanos = System.nanoTime();
+	}
+
+	/** Returns a budget with no limits. */
+	public static ScanBudget unlimited() {
+		return new ScanBudget(0, 0, 0, 0);
+	}
+
+	/** Returns a new budget with the limits configured in ToolProperties.xml. */
+	public static ScanBudget fromProperties() {
+		return new ScanBudget(Properties.budgetMaxEntries,
+				Properties.budgetMaxInflatedBytes,
+				Properties.budgetMaxCompressionRatio,
+				Properties.budgetMaxScanMillis);
+	}
+
+	public void checkEntries(long count) throws ExceededException {
+		if (maxEntries > 0 && count > maxEntries) {
+			throw new ExceededException(ENTRIES, "App has " + count
+					+ " entries, more than the limit of " + maxEntries);
+		}
+	}
+
+	/**
+	 * Checks the ratio of an entry's uncompressed to compressed size. An
+	 * entry that claims data but has no compressed bytes is over any limit.
+	 */
+	public void checkRatio(String name, long compressedSize,
+			long uncompressedSize) throws ExceededException {
+		if (maxCompressionRatio <= 0 || uncompressedSize <= 0) {
+			return;
+		}
+		if (compressedSize <= 0
+				|| uncompressedSize / compressedSize > maxCompressionRatio) {
+			throw new ExceededException(COMPRESSION_RATIO, "Entry " + name
+					+ " expands from " + compressedSize + " to "
+					+ uncompressedSize + " bytes, more than the ratio limit of "
+					+ maxCompressionRatio);
+		}
+	}
+
+	/** Throws if the total inflated size would exceed the limit. */
+	public void checkInflatedTotal(long total) throws ExceededException {
+		if (maxInflatedBytes > 0 && total > maxInflatedBytes) {
+			throw new ExceededException(INFLATED_BYTES, "App inflates to "
+					+ total + " bytes, more than the limit of "
+					+ maxInflatedBytes);
+		}
+	}
+
+	/** Accounts for n more inflated bytes. */
+	public void addInflated(long n) throws ExceededException {
+		checkInflatedTotal(inflatedBytes.addAndGet(n));
+	}
+
+	public void checkTime() throws ExceededException {
+		if (maxScanMillis > 0
+				&& System.nanoTime() - startNanos > maxScanMillis * 1000000L) {
+			throw new ExceededException(SCAN_TIME,
+					"Scan took longer than the limit of " + maxScanMillis
+							+ " ms");
+		}
+	}
+}
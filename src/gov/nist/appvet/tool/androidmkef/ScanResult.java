@@ -0,0 +1,76 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+/**
+ * Findings of a single MKEFScanner pass over an app.
+ */
+public class ScanResult {
+
+	private String masterKeyDetail = null;
+	private String extraFieldDetail = null;
+	private String error = null;
+
+	/** Records a MasterKey finding. Only the first detail is kept. */
+	public void addMasterKey(String detail) {
+		if (masterKeyDetail == null) {
+			masterKeyDetail = detail;
+		}
+	}
+
+	/** Records an ExtraField finding. Only the first detail is kept. */
+	public void addExtraField(String detail) {
+		if (extraFieldDetail == null) {
+			extraFieldDetail = detail;
+		}
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+
+	public boolean hasMasterKey() {
+		return masterKeyDetail != null;
+	}
+
+	public boolean hasExtraField() {
+		return extraFieldDetail != null;
+	}
+
+	public boolean isVulnerable() {
+		return masterKeyDetail != null || extraFieldDetail != null;
+	}
+
+	public boolean isError() {
+		return error != null;
+	}
+
+	public String getMasterKeyDetail() {
+		return masterKeyDetail;
+	}
+
+	public String getExtraFieldDetail() {
+		return extraFieldDetail;
+	}
+
+	public String getError() {
+		return error;
+	}
+}
@@ -22,31 +22,39 @@ package gov.nist.appvet.tool.androidmkef;
 import gov.nist.appvet.tool.androidmkef.util.FileUtil;
 import gov.nist.appvet.tool.androidmkef.util.HttpUtil;
 import gov.nist.appvet.tool.androidmkef.util.Logger;
+import gov.nist.appvet.tool.androidmkef.util.Metrics;
+import gov.nist.appvet.tool.androidmkef.util.ProcessRunner;
 import gov.nist.appvet.tool.androidmkef.util.Protocol;
 import gov.nist.appvet.tool.androidmkef.util.ReportFormat;
 import gov.nist.appvet.tool.androidmkef.util.ReportUtil;
+import gov.nist.appvet.tool.androidmkef.util.SingleFlight;
 import gov.nist.appvet.tool.androidmkef.util.ToolStatus;
+import gov.nist.appvet.tool.androidmkef.util.UploadedFile;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Arrays;
-import java.util.Iterator;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Scanner;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.FileItemFactory;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
 import org.apache.commons.io.FileUtils;
 
 /**
@@ -55,318 +63,721 @@ import org.apache.commons.io.FileUtils;
 public class Service extends HttpServlet {
 
 	private static final long serialVersionUID = 1L;
-	private static final String reportName = "report";
 	private static final Logger log = Properties.log;
-	private static String appDirPath = null;
-	private String appFilePath = null;
-	private String iconFilePath = null;
-	private String htmlFileReportPath = null;
-	private String pdfFileReportPath = null;
-	private String fileName = null;
-	private String appId = null;
-	private StringBuffer reportBuffer = null;
+	// Identical apps or reports in flight at the same time share one scan
+	// and one PDF conversion
+	private static final SingleFlight<VerdictCache.Verdict> scans = new SingleFlight<VerdictCache.Verdict>(
+			"scan");
+	private static final SingleFlight<String> conversions = new SingleFlight<String>(
+			"pdf");
 
 	public Service() {
 		super();
 	}
 
+	/** Resumes asynchronous jobs left unfinished by the last shutdown. */
+	public void init() throws ServletException {
+		super.init();
+		ReportUtil.prepareSkeletons();
+		JobJournal journal = JobJournal.getInstance();
+		if (journal == null
+				|| !Properties.protocol.equals(Protocol.ASYNCHRONOUS.name())) {
+			return;
+		}
+		for (Job job : journal.recover()) {
+			log.info("Resuming " + job);
+			if (!submit(job)) {
+				journal.record(job, JobJournal.FAILED);
+			}
+		}
+	}
+
 	protected void doPost(HttpServletRequest request,
 			HttpServletResponse response) throws ServletException, IOException {
 		
 		log.debug("In MKEF doPost()");
 
-		// Get received HTTP parameters and file upload
-		FileItemFactory factory = new DiskFileItemFactory();
-		ServletFileUpload upload = new ServletFileUpload(factory);
-		List<FileItem> items = null;
-		FileItem appFileItem = null;
-		FileItem iconFileItem = null;
-
+		// Stream the multipart body. Small files are kept in memory; larger
+		// ones are written once, straight to their final location if the app
+		// ID has already been received, or else to a staging file that is
+		// renamed into place below.
+		ServletFileUpload upload = new ServletFileUpload();
+		String appId = null;
+		String submitter = null;
+		String fileName = null;
+		UploadedFile appUpload = null;
+		UploadedFile iconUpload = null;
 		try {
-			items = upload.parseRequest(request);
-		} catch (FileUploadException e) {
-			e.printStackTrace();
-		}
-
-		// Get received items
-		Iterator<FileItem> iter = items.iterator();
-		FileItem item = null;
-
-		while (iter.hasNext()) {
-			item = (FileItem) iter.next();
-			if (item.isFormField()) {
-				// Get HTML form parameters
-				String incomingParameter = item.getFieldName();
-				String incomingValue = item.getString();
-				if (incomingParameter.equals("appid")) {
-					appId = incomingValue;
-				}
-			} else {
-				// item is a file
-				if (item != null) {
-					if (item.getName().endsWith(".apk")) {
-						appFileItem = item;
-						log.debug("Received app: " + appFileItem.getName());
-					} else if (item.getName().endsWith(".png")){
-						iconFileItem = item;
-						log.debug("Received icon: " + iconFileItem.getName());
+			FileItemIterator iter = upload.getItemIterator(request);
+			while (iter.hasNext()) {
+				FileItemStream item = iter.next();
+				InputStream stream = item.openStream();
+				if (item.isFormField()) {
+					// Get HTML form parameters
+					String incomingParameter = item.getFieldName();
+					String incomingValue = Streams.asString(stream);
+					if (incomingParameter.equals("appid")) {
+						appId = incomingValue;
+					} else if (incomingParameter.equals("username")
+							|| (incomingParameter.equals("toolid")
+									&& submitter == null)) {
+						submitter = incomingValue;
 					}
+				} else if (item.getName() != null
+						&& item.getName().endsWith(".apk")) {
+					log.debug("Received app: " + item.getName());
+					fileName = FileUtil.getFileName(item.getName());
+					appUpload = UploadedFile.receive(stream,
+							Properties.inMemoryMaxSize,
+							getUploadPath(appId, fileName));
+				} else if (item.getName() != null
+						&& item.getName().endsWith(".png")) {
+					log.debug("Received icon: " + item.getName());
+					iconUpload = UploadedFile.receive(stream,
+							Properties.inMemoryMaxSize,
+							getUploadPath(appId, "icon.png"));
 				}
 			}
+		} catch (FileUploadException e) {
+			log.error(e.toString());
+			deleteUploads(appUpload, iconUpload);
+			HttpUtil.sendHttp400(response, "Invalid upload: " + e.getMessage());
+			return;
+		} catch (IOException e) {
+			log.error(e.toString());
+			deleteUploads(appUpload, iconUpload);
+			HttpUtil.sendHttp500(response, "Could not save upload");
+			return;
 		}
 
 		if (appId == null) {
 			// All tool services require an AppVet app ID
+			deleteUploads(appUpload, iconUpload);
 			HttpUtil.sendHttp400(response, "No app ID specified");
 			return;
 		}
 
-		if (appFileItem != null && iconFileItem != null) {
-			// Get app file
-			fileName = FileUtil.getFileName(appFileItem.getName());
-			// Must be an APK file
-			if (!fileName.endsWith(".apk")) {
-				HttpUtil.sendHttp400(response,
-						"Invalid app file: " + appFileItem.getName());
-				return;
-			}
+		if (appUpload == null || iconUpload == null) {
+			deleteUploads(appUpload, iconUpload);
+			HttpUtil.sendHttp400(response, "No app or icon was received.");
+			return;
+		}
+		log.debug("SHA-256 of " + fileName + ": " + appUpload.getSha256()
+				+ " (" + appUpload.getSize() + " bytes"
+				+ (appUpload.isInMemory() ? ", in memory)" : ")"));
+
+		// From here on all state of this submission is held by the job.
+		// Jobs are scheduled fairly between submitters, identified by
+		// AppVet user name or tool ID, or else by address.
+		if (submitter == null) {
+			submitter = request.getRemoteAddr();
+		}
+		Job job = new Job(appId, submitter, fileName, appUpload, iconUpload);
 
-			// Create app directory
-			appDirPath = Properties.TEMP_DIR + "/" + appId;
-			File appDir = new File(appDirPath);
-			if (!appDir.exists()) {
-				appDir.mkdir();
+		// If asynchronous, save, journal and queue the job and send
+		// acknowledgement back to AppVet; the job is processed on a worker
+		// thread
+		if (Properties.protocol.equals(Protocol.ASYNCHRONOUS.name())) {
+			int status = enqueue(job);
+			if (status == HttpServletResponse.SC_INTERNAL_SERVER_ERROR) {
+				HttpUtil.sendHttp500(response, "Could not save app");
+			} else if (status == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+				HttpUtil.sendHttp503(response, "Too many apps queued, retry "
+						+ "app " + appId + " later.", Properties.queueRetryAfter);
+			} else {
+				HttpUtil.sendHttp202(response, "Received app " + appId
+						+ " for processing.");
 			}
+			return;
+		}
 
-			// Create report paths
-			htmlFileReportPath = appDirPath + "/"
-					+ reportName + "." + Properties.reportFormat.toLowerCase();
-			pdfFileReportPath = appDirPath + "/"
-					+ reportName + ".pdf";
+		// Move spilled uploads into place, and keep in-memory ones on disk
+		// only if apps are to be kept
+		if (!saveUploads(job, Properties.keepApps)) {
+			deleteUploads(appUpload, iconUpload);
+			HttpUtil.sendHttp500(response, "Could not save app");
+			return;
+		}
 
-			appFilePath = appDirPath + "/" + fileName;
-			iconFilePath = appDirPath + "/icon.png";
+		try {
+			process(job, response);
+		} catch (RuntimeException e) {
+			log.error("Error processing " + job + ": " + e.toString());
+			e.printStackTrace();
+			JobIndex.getInstance().setVerdict(job, -1.0, ToolStatus.ERROR);
+			finish(job, false);
+			HttpUtil.sendHttp500(response, "Error processing app " + appId);
+		}
+	}
 
-			if (!FileUtil.saveFileUpload(appFileItem, appFilePath)) {
-				HttpUtil.sendHttp500(response, "Could not save app");
-				return;
-			}
-			
-			if (!FileUtil.saveFileUpload(iconFileItem, iconFilePath)) {
-				HttpUtil.sendHttp500(response, "Could not save icon");
-				return;
+	/**
+	 * Saves the files of an asynchronous job, journals it and queues it.
+	 * Returns SC_ACCEPTED, SC_INTERNAL_SERVER_ERROR if the job could not be
+	 * saved or journaled, or SC_SERVICE_UNAVAILABLE if the queue is full. A
+	 * job that is not accepted has its files deleted.
+	 */
+	protected int enqueue(Job job) {
+		// In-memory uploads are saved only if apps are to be kept or jobs
+		// are journaled
+		JobJournal journal = JobJournal.getInstance();
+		if (!saveUploads(job, Properties.keepApps || journal != null)) {
+			deleteUploads(job.getAppUpload(), job.getIconUpload());
+			return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+		}
+		if (journal != null && !journal.accepted(job)) {
+			deleteJobFiles(job);
+			return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+		}
+		if (!submit(job)) {
+			if (journal != null) {
+				journal.record(job, JobJournal.FAILED);
 			}
-			
-		} else {
-			HttpUtil.sendHttp400(response, "No app or icon was received.");
-			return;
+			deleteJobFiles(job);
+			return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
 		}
+		return HttpServletResponse.SC_ACCEPTED;
+	}
 
-		// If asynchronous, send acknowledgement back to AppVet
-		if (Properties.protocol.equals(Protocol.ASYNCHRONOUS.name())) {
-			HttpUtil.sendHttp202(response, "Received app " + appId
-					+ " for processing.");
+	/**
+	 * Moves spilled uploads of a job into its app directory. In-memory
+	 * uploads are written there too if keepOnDisk is set.
+	 */
+	private static boolean saveUploads(Job job, boolean keepOnDisk) {
+		UploadedFile appUpload = job.getAppUpload();
+		UploadedFile iconUpload = job.getIconUpload();
+		if ((!appUpload.isInMemory() || keepOnDisk)
+				&& !appUpload.saveTo(job.getAppFilePath())) {
+			return false;
 		}
+		if (iconUpload != null && (!iconUpload.isInMemory() || keepOnDisk)
+				&& !iconUpload.saveTo(job.getIconFilePath())) {
+			return false;
+		}
+		return true;
+	}
 
-		reportBuffer = new StringBuffer();
-
-		// Start processing app
-		log.debug("Executing MKEF on app");
-		double score = analyzeMkef(reportBuffer);
-		System.out.println("MKEF score: " + score);
+	/**
+	 * Queues a job for the asynchronous pipeline; returns false if the queue
+	 * is full. The job is scanned on a JobQueue worker and then handed from
+	 * stage to stage of the Pipeline: render, pdf and deliver.
+	 */
+	private boolean submit(final Job job) {
+		JobIndex.getInstance().update(job, JobStatus.State.QUEUED);
+		boolean queued = JobQueue.getInstance().submit(job,
+				guard(job, "scan", new Runnable() {
+					public void run() {
+						final VerdictCache.Verdict verdict = scan(job);
+						handOff(Pipeline.getInstance().getRender(), job,
+								new Runnable() {
+									public void run() {
+										render(job, verdict);
+									}
+								});
+					}
+				}));
+		if (!queued) {
+			JobIndex.getInstance().update(job, JobStatus.State.FAILED);
+		}
+		return queued;
+	}
 
-		// Analyze report and generate tool status
-		log.debug("Analyzing report for " + appFilePath);
-		ToolStatus reportStatus = null;
-		if (score < 0.0) {
-			reportStatus = ToolStatus.ERROR;
-		} else if (score == 0.0) {
-			reportStatus = ToolStatus.LOW;
-		} else if (score == 10.0) {
-			reportStatus = ToolStatus.HIGH;
-		} else {
-			reportStatus = ToolStatus.ERROR;
+	/**
+	 * Render stage: writes the report and hands the job to the delivery
+	 * stage, or for PDF reports to the PDF stage, first writing the HTML
+	 * report that HtmlToPdfCmd may convert.
+	 */
+	private void render(final Job job, final VerdictCache.Verdict verdict) {
+		JobIndex.getInstance().update(job, JobStatus.State.RENDERING);
+		ReportFormat format = getReportFormat();
+		if (format == null) {
+			finish(job, false);
+			return;
 		}
-		log.debug("Result: " + reportStatus.name());
-		String reportContent = null;
-
-		// Get report TODO Fix HTML requirement here
-		if (Properties.reportFormat.equals(ReportFormat.HTML.name())) {
-			reportContent = ReportUtil
-					.getHtmlReport(
-							response,
-							fileName,
-							reportStatus,
-							reportBuffer.toString(),
-							"Description: \tApp does not contain Android MasterKey or ExtraField vulnerabilities.\n\n",
-							null,
-							"Description: \tApp contains Android MasterKey and/or ExtraField vulnerabilities.\n\n",
-							"Description: \tError or exception processing app.\n\n");
-		}
-
-		// If report content is null or empty, stop processing
-		if (reportContent == null || reportContent.isEmpty()) {
-			log.error("Tool report is null or empty");
+		new File(job.getAppDirPath()).mkdirs();
+		if (format != ReportFormat.PDF) {
+			if (!saveReport(job, verdict, format, job.getReportFilePath())) {
+				finish(job, false);
+				return;
+			}
+			record(job, JobJournal.RENDERED);
+			deliver(job, verdict, job.getReportFilePath());
 			return;
 		}
+		if ((Properties.PDF_RENDERER_COMMAND.equals(Properties.pdfRenderer)
+				|| isHtmlToPdfCommand())
+				&& !saveReport(job, verdict, ReportFormat.HTML,
+						job.getHtmlFileReportPath())) {
+			finish(job, false);
+			return;
+		}
+		record(job, JobJournal.RENDERED);
+		handOff(Pipeline.getInstance().getPdf(), job, new Runnable() {
+			public void run() {
+				convert(job, verdict);
+			}
+		});
+	}
 
-		// Send report to AppVet
-		if (Properties.protocol.equals(Protocol.ASYNCHRONOUS.name())) {
-			// Send report file in new HTTP Request to AppVet
-			boolean htmlFileSaved = FileUtil.saveReport(reportContent,
-					htmlFileReportPath);
-			if (htmlFileSaved) {
-				final StringBuffer reportBuffer = new StringBuffer();
-				boolean htmlToPdfSuccessful = execute(Properties.htmlToPdfCommand + " " 
-						+ htmlFileReportPath + " " + pdfFileReportPath,
-						reportBuffer);
-				if (htmlToPdfSuccessful) {
-					ReportUtil.sendInNewHttpRequest(appId, pdfFileReportPath,
-							score, reportStatus);
-				} else {
-					log.error("Error generating PDF file " + pdfFileReportPath);
-				}
-			} else {
-				log.error("Error writing HTML report " + htmlFileReportPath);
+	/**
+	 * PDF stage: converts the report, then hands the job to the delivery
+	 * stage.
+	 */
+	private void convert(final Job job, final VerdictCache.Verdict verdict) {
+		JobIndex.getInstance().update(job, JobStatus.State.CONVERTING);
+		String pdfPath = conversions.run(getReportKey(job, verdict),
+				new Callable<String>() {
+					public String call() {
+						return toPdf(job, verdict);
+					}
+				});
+		if (pdfPath != null && !pdfPath.equals(job.getPdfFileReportPath())) {
+			// Converted for another job; copy the shared PDF for this one
+			try {
+				Files.copy(Paths.get(pdfPath),
+						Paths.get(job.getPdfFileReportPath()),
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				log.warn("Could not copy PDF of another job: " + e.toString());
+				pdfPath = toPdf(job, verdict);
 			}
 		}
+		if (pdfPath == null) {
+			finish(job, false);
+			return;
+		}
+		deliver(job, verdict, job.getPdfFileReportPath());
+	}
 
-		// Clean up
-		if (!Properties.keepApps) {
-			try {
-				log.debug("Removing app " + appId + " files.");
-				FileUtils.deleteDirectory(new File(appDirPath));
-			} catch (IOException ioe) {
-				log.error(ioe.getMessage());
+	/** Hands the report file of a job to the delivery stage. */
+	private void deliver(final Job job, final VerdictCache.Verdict verdict,
+			final String reportFilePath) {
+		handOff(Pipeline.getInstance().getDeliver(), job, new Runnable() {
+			public void run() {
+				// Send report file in new HTTP Request to AppVet
+				JobIndex.getInstance().update(job,
+						JobStatus.State.DELIVERING);
+				finish(job, ReportUtil.sendInNewHttpRequest(job.getAppId(),
+						reportFilePath, verdict.getScore(),
+						verdict.getStatus()));
 			}
+		});
+	}
+
+	/**
+	 * Hands task for a job to a pipeline stage, guarded by guard(). The job
+	 * fails if the stage cannot take it.
+	 */
+	private void handOff(PipelineStage stage, Job job, Runnable task) {
+		if (!stage.submit(job, guard(job, stage.getName(), task))) {
+			log.error("Could not hand " + job + " to the " + stage.getName()
+					+ " stage");
+			finish(job, false);
 		}
+	}
 
-		reportBuffer = null;
+	/**
+	 * Wraps the task of a job in a stage so that an unexpected exception or
+	 * error ends the job through abort() instead of leaving it unfinished.
+	 * Errors are caught too, as they would otherwise end the stage's worker.
+	 */
+	private Runnable guard(final Job job, final String stage,
+			final Runnable task) {
+		return new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} catch (RuntimeException | Error e) {
+					abort(job, stage, e);
+				}
+			}
+		};
+	}
 
-		// Clean up
-		System.gc();
+	/**
+	 * Ends a job whose stage failed unexpectedly: records an ERROR verdict,
+	 * sends AppVet an ERROR report if it can, so that AppVet is not left
+	 * waiting, and fails the job.
+	 */
+	private void abort(Job job, String stage, Throwable error) {
+		log.error("Error in " + stage + " stage of " + job + ": "
+				+ error.toString());
+		error.printStackTrace();
+		Metrics.increment("jobs.aborted." + stage);
+		VerdictCache.Verdict verdict = new VerdictCache.Verdict(-1.0,
+				ToolStatus.ERROR, "Error processing app: " + error.toString());
+		JobIndex.getInstance().setVerdict(job, verdict.getScore(),
+				verdict.getStatus());
+		try {
+			ReportFormat format = getReportFormat();
+			if (format != null) {
+				new File(job.getAppDirPath()).mkdirs();
+				if (saveReport(job, verdict, format, job.getReportFilePath())) {
+					ReportUtil.sendInNewHttpRequest(job.getAppId(),
+							job.getReportFilePath(), verdict.getScore(),
+							verdict.getStatus());
+				}
+			}
+		} catch (RuntimeException e) {
+			log.error("Could not report error of " + job + ": " + e.toString());
+		}
+		finish(job, false);
 	}
 
-	/** If no Master Key found, return toolscore=0.0. If found, return toolscore=10.0. */
-	public double analyzeMkef(StringBuffer output) {
-		log.debug("Creating MKEFScanner");
-		MKEFScanner mkefScan = new MKEFScanner(appFilePath);
-		log.debug("Created MKEFScanner");
+	/**
+	 * Converts the report of a job to its PDF report file and returns the
+	 * path of the file, or null if it could not be converted. The renderer
+	 * not chosen by /Tool/Report/PdfRenderer is tried if the chosen one
+	 * fails and is available.
+	 */
+	private String toPdf(Job job, VerdictCache.Verdict verdict) {
+		boolean command = Properties.PDF_RENDERER_COMMAND
+				.equals(Properties.pdfRenderer);
+		String pdf = command ? toPdfByCommand(job) : toPdfBuiltin(job,
+				verdict);
+		if (pdf == null) {
+			if (command || isHtmlToPdfCommand()) {
+				log.warn("Retrying PDF of " + job + " with the "
+						+ (command ? "builtin renderer" : "HtmlToPdfCmd"));
+				Metrics.increment("pdf.fallback");
+				pdf = command ? toPdfBuiltin(job, verdict)
+						: toPdfByCommand(job);
+			}
+		}
+		return pdf;
+	}
 
-		if (mkefScan.hasMasterKey()) {
-			mkefScan.close();
-			// The following String MUST match in ToolProperties.xml
-			System.out.println("Android MasterKey vulnerability detected.");
-			output.append("Android MasterKey vulnerability detected.");
-			return 10.0;
-		} else if (mkefScan.hasExtraField()) {
-			mkefScan.close();
-			// The following String MUST match in ToolProperties.xml
-			System.out.println("Android ExtraField vulnerability detected.");
-			output.append("Android ExtraField vulnerability detected.");
-			return 10.0;
-		} else {
-			log.debug("Mo Master Key found");
-			mkefScan.close();
-			System.out.println("No Android MaskterKey or ExtraField vulnerabilities detected.");
-			output.append("No Android MaskterKey or ExtraField vulnerabilities detected.");
+	/** Renders the PDF report of a job in process. */
+	private String toPdfBuiltin(Job job, VerdictCache.Verdict verdict) {
+		if (!saveReport(job, verdict, ReportFormat.PDF,
+				job.getPdfFileReportPath())) {
+			return null;
 		}
-		return 0.0;
+		Metrics.increment("pdf.builtin");
+		return job.getPdfFileReportPath();
+	}
+
+	/** Converts the saved HTML report of a job with HtmlToPdfCmd. */
+	private String toPdfByCommand(Job job) {
+		List<String> command = ProcessRunner
+				.split(Properties.htmlToPdfCommand == null ? ""
+						: Properties.htmlToPdfCommand);
+		command.add(job.getHtmlFileReportPath());
+		command.add(job.getPdfFileReportPath());
+		ProcessRunner.Result result = ProcessRunner.getInstance().run(
+				"htmlToPdf", command, Properties.commandTimeout);
+		if (!result.isSuccess()) {
+			log.error("Error generating PDF file " + job.getPdfFileReportPath()
+					+ ": " + result.getError());
+			return null;
+		}
+		if (!new File(job.getPdfFileReportPath()).isFile()) {
+			log.error("HtmlToPdfCmd did not write "
+					+ job.getPdfFileReportPath());
+			return null;
+		}
+		Metrics.increment("pdf.command");
+		return job.getPdfFileReportPath();
 	}
 
 	/**
-	 * IMPORTANT: Make sure that tool to execute is in a user-owned directory
-	 * with executable permissions for root. Otherwise, the tool may not execute
-	 * properly.
+	 * Returns a key identifying the report of a job: jobs for the same app
+	 * bytes, file name and verdict get identical reports.
 	 */
-	private boolean execute(String command, StringBuffer output) {
-		List<String> commandArgs = Arrays.asList(command.split("\\s+"));
-		ProcessBuilder pb = new ProcessBuilder(commandArgs);
-		Process process = null;
-		IOThreadHandler outputHandler = null;
-		IOThreadHandler errorHandler = null;
-		int exitValue = -1;
+	private static String getReportKey(Job job, VerdictCache.Verdict verdict) {
+		return job.getSha256() + "\t" + job.getFileName() + "\t"
+				+ verdict.getStatus().name();
+	}
+
+	/**
+	 * Processes a job on the request thread in synchronous mode: scans its
+	 * app, streams the report in the response and cleans up after it.
+	 */
+	private void process(Job job, HttpServletResponse response) {
+		VerdictCache.Verdict verdict = scan(job);
+		ReportFormat format = getReportFormat();
+		if (format == null) {
+			HttpUtil.sendHttp500(response, "Unsupported report format");
+			finish(job, false);
+			return;
+		}
+		finish(job, sendReport(job, verdict, format, response));
+	}
+
+	/** Writes the report of a job to a file in the given format. */
+	private static boolean saveReport(Job job, VerdictCache.Verdict verdict,
+			ReportFormat format, String path) {
+		OutputStream out = null;
 		try {
-			process = pb.start();
-			outputHandler = new IOThreadHandler(process.getInputStream());
-			outputHandler.start();
-			errorHandler = new IOThreadHandler(process.getErrorStream());
-			errorHandler.start();
-			if (process.waitFor(300000, TimeUnit.MILLISECONDS)) {
-				// Process has waited and exited within the timeout
-				exitValue = process.exitValue();
-				if (exitValue == 0) {
-					StringBuffer resultOut = outputHandler.getOutput();
-					output.append(resultOut);
-					return true;
-				} else {
-					StringBuffer resultError = errorHandler.getOutput();
-					output.append(resultError);
-					return false;
-				}
-			} else {
-				// Process exceed timeout or was interrupted
-				StringBuffer resultOutput = outputHandler.getOutput();
-				StringBuffer resultError = errorHandler.getOutput();
-				if (resultOutput != null) {
-					output.append(resultOutput);
-				} else if (resultError != null) {
-					output.append(resultError);
-				} else {
-					output.append("Apktool timed-out");
-				}
-				return false;
-			}
+			out = new FileOutputStream(path);
+			writeReport(out, format, job, verdict);
+			return true;
 		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			log.error("Error writing " + format.name() + " report " + path
+					+ ": " + e.toString());
 			return false;
 		} finally {
-			if (outputHandler != null && outputHandler.isAlive()) {
+			if (out != null) {
 				try {
-					outputHandler.inputStream.close();
+					out.close();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
 			}
-			if (errorHandler != null && errorHandler.isAlive()) {
-				try {
-					errorHandler.inputStream.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+		}
+	}
+
+	/**
+	 * Streams the report of a job to the AppVet ToolAdapter as the response,
+	 * in the given format.
+	 */
+	private static boolean sendReport(Job job, VerdictCache.Verdict verdict,
+			ReportFormat format, HttpServletResponse response) {
+		try {
+			response.setStatus(HttpServletResponse.SC_OK); // HTTP 200
+			response.setContentType(format.getContentType());
+			response.setHeader("toolrisk", verdict.getStatus().name());
+			OutputStream out = response.getOutputStream();
+			writeReport(out, format, job, verdict);
+			out.close();
+			log.debug("Returned report");
+			return true;
+		} catch (IOException e) {
+			log.error(e.toString());
+			return false;
+		}
+	}
+
+	/** Writes the report of a job in the given format. */
+	private static void writeReport(OutputStream out, ReportFormat format,
+			Job job, VerdictCache.Verdict verdict) throws IOException {
+		switch (format) {
+		case PDF:
+			ReportUtil.writePdfReport(out, job.getFileName(),
+					verdict.getStatus(), verdict.getReport());
+			break;
+		case JSON:
+			ReportUtil.writeJsonReport(out, job.getAppId(),
+					job.getFileName(), job.getSha256(), verdict.getScore(),
+					verdict.getStatus(), verdict.getReport(), getTimings(job));
+			break;
+		case XML:
+			ReportUtil.writeXmlReport(out, job.getAppId(), job.getFileName(),
+					job.getSha256(), verdict.getScore(), verdict.getStatus(),
+					verdict.getReport(), getTimings(job));
+			break;
+		default:
+			ReportUtil.writeHtmlReport(out, job.getFileName(),
+					verdict.getStatus(), verdict.getReport());
+		}
+	}
+
+	/**
+	 * Returns the milliseconds after submission at which a job entered each
+	 * state it has entered so far, keyed by state, such as "scanningMs".
+	 */
+	private static Map<String, Long> getTimings(Job job) {
+		Map<String, Long> timings = new LinkedHashMap<String, Long>();
+		JobStatus status = JobIndex.getInstance().getByAppId(job.getAppId());
+		if (status == null) {
+			return timings;
+		}
+		for (JobStatus.State state : JobStatus.State.values()) {
+			long millis = status.getEnteredMillis(state);
+			if (millis >= 0) {
+				timings.put(state.name().toLowerCase() + "Ms", millis);
 			}
-			if (process != null && process.isAlive()) {
-				process.destroy();
+		}
+		return timings;
+	}
+
+	/**
+	 * Scan stage: scans the app of a job, unless these bytes were already
+	 * scanned, and returns its score, status and report text.
+	 */
+	private VerdictCache.Verdict scan(final Job job) {
+		JobIndex.getInstance().update(job, JobStatus.State.SCANNING);
+		VerdictCache.Verdict verdict = scans.run(job.getSha256(),
+				new Callable<VerdictCache.Verdict>() {
+					public VerdictCache.Verdict call() {
+						return analyze(job);
+					}
+				});
+		System.out.println("MKEF score: " + verdict.getScore());
+		record(job, JobJournal.SCANNED);
+		JobIndex.getInstance().setVerdict(job, verdict.getScore(),
+				verdict.getStatus());
+		return verdict;
+	}
+
+	/** Scans the app of a job, or takes its verdict from the cache. */
+	private VerdictCache.Verdict analyze(Job job) {
+		StringBuffer reportBuffer = new StringBuffer();
+
+		// Start processing app, unless these bytes were already scanned
+		double score = 0.0;
+		VerdictCache verdictCache = VerdictCache.getInstance();
+		VerdictCache.Verdict cachedVerdict = null;
+		if (verdictCache != null) {
+			cachedVerdict = verdictCache.get(job.getSha256());
+		}
+		if (cachedVerdict != null) {
+			log.debug("Using cached verdict for " + job.getSha256());
+			score = cachedVerdict.getScore();
+			reportBuffer.append(cachedVerdict.getReport());
+		} else {
+			// Start the scan only once its predicted heap fits the budget
+			long memory = job.getEstimate().getMemory();
+			MemoryBudget.getInstance().reserve(memory);
+			try {
+				log.debug("Executing MKEF on app");
+				score = analyzeMkef(job, reportBuffer);
+			} finally {
+				MemoryBudget.getInstance().release(memory);
 			}
 		}
+
+		// Analyze report and generate tool status
+		log.debug("Analyzing report for " + job.getAppFilePath());
+		ToolStatus reportStatus = null;
+		if (score < 0.0) {
+			reportStatus = ToolStatus.ERROR;
+		} else if (score == 0.0) {
+			reportStatus = ToolStatus.LOW;
+		} else if (score == 10.0) {
+			reportStatus = ToolStatus.HIGH;
+		} else {
+			reportStatus = ToolStatus.ERROR;
+		}
+		log.debug("Result: " + reportStatus.name());
+		VerdictCache.Verdict verdict = new VerdictCache.Verdict(score,
+				reportStatus, reportBuffer.toString());
+		if (verdictCache != null && cachedVerdict == null) {
+			verdictCache.put(job.getSha256(), verdict);
+		}
+		return verdict;
+	}
+
+	/**
+	 * Returns the report format configured by /Tool/Report/Format, or null
+	 * if it is not one of HTML, PDF, JSON and XML.
+	 */
+	private static ReportFormat getReportFormat() {
+		ReportFormat format = ReportFormat.getEnum(Properties.reportFormat);
+		if (format == null || format == ReportFormat.TXT) {
+			log.error("Unsupported report format " + Properties.reportFormat);
+			return null;
+		}
+		return format;
+	}
+
+	/** Returns true if HtmlToPdfCmd is configured. */
+	private static boolean isHtmlToPdfCommand() {
+		return Properties.htmlToPdfCommand != null
+				&& !Properties.htmlToPdfCommand.trim().isEmpty();
+	}
+
+	/**
+	 * Records the outcome of a job and cleans up after it. The job's status
+	 * becomes final only once its files are gone.
+	 */
+	private void finish(Job job, boolean delivered) {
+		record(job, delivered ? JobJournal.DELIVERED : JobJournal.FAILED);
+
+		// Clean up
+		if (!Properties.keepApps) {
+			deleteJobFiles(job);
+		}
+		JobIndex.getInstance().update(job, delivered ? JobStatus.State.DELIVERED
+				: JobStatus.State.FAILED);
 	}
 
-	private class IOThreadHandler extends Thread {
-		private InputStream inputStream;
-		private StringBuffer output = new StringBuffer();
-		private final String lineSeparator = System
-				.getProperty("line.separator");
+	/** Journals a transition of an asynchronous job. */
+	private static void record(Job job, String state) {
+		JobJournal journal = JobJournal.getInstance();
+		if (journal != null) {
+			journal.record(job, state);
+		}
+	}
 
-		IOThreadHandler(InputStream inputStream) {
-			this.inputStream = inputStream;
+	/**
+	 * Returns where an uploaded file too large for memory should be written:
+	 * its final location in the app directory if the app ID is known,
+	 * otherwise a unique staging file in TEMP_DIR.
+	 */
+	protected static String getUploadPath(String appId, String name) {
+		if (appId != null) {
+			return Properties.TEMP_DIR + "/" + appId + "/" + name;
 		}
+		return Properties.TEMP_DIR + "/upload-" + UUID.randomUUID() + "-"
+				+ name;
+	}
 
-		public void run() {
-			Scanner br = null;
-			br = new Scanner(new InputStreamReader(inputStream));
-			String line = null;
-			while (br.hasNextLine()) {
-				line = br.nextLine();
-				output.append(line + lineSeparator);
-			}
-			br.close();
+	/** Deletes any uploaded files of a rejected request. */
+	protected static void deleteUploads(UploadedFile appUpload,
+			UploadedFile iconUpload) {
+		if (appUpload != null) {
+			appUpload.delete();
+		}
+		if (iconUpload != null) {
+			iconUpload.delete();
 		}
+	}
 
-		public StringBuffer getOutput() {
-			return output;
+	/** Deletes the app directory of a job. */
+	private static void deleteJobFiles(Job job) {
+		try {
+			log.debug("Removing app " + job.getAppId() + " files.");
+			FileUtils.deleteDirectory(new File(job.getAppDirPath()));
+		} catch (IOException ioe) {
+			log.error(ioe.getMessage());
 		}
 	}
+
+	/**
+	 * If no Master Key or ExtraField found, return toolscore=0.0. If found,
+	 * return toolscore=10.0. If the app could not be scanned, return -1.0.
+	 */
+	public double analyzeMkef(Job job, StringBuffer output) {
+		log.debug("Creating MKEFScanner");
+		MKEFScanner mkefScan = null;
+		UploadedFile appUpload = job.getAppUpload();
+		if (appUpload.isInMemory()) {
+			mkefScan = new MKEFScanner(appUpload.getBytes(),
+					Properties.scanParallelism, Properties.verifyCrc);
+		} else {
+			mkefScan = new MKEFScanner(appUpload.getFilePath(),
+					Properties.scanParallelism, Properties.verifyCrc);
+		}
+		log.debug("Created MKEFScanner");
+		ScanResult result = mkefScan.scan(Properties.fastVerdict,
+				ScanBudget.fromProperties());
+		mkefScan.close();
+
+		// A scan that stopped with an error, such as an exceeded budget, is
+		// incomplete, so its findings so far do not make a verdict
+		if (result.isError()) {
+			log.error("Could not scan " + job.getAppFilePath() + ": "
+					+ result.getError());
+			output.append("Error processing app: " + result.getError());
+			return -1.0;
+		} else if (result.hasMasterKey() || result.hasExtraField()) {
+			// The following Strings MUST match in ToolProperties.xml
+			if (result.hasMasterKey()) {
+				log.debug(result.getMasterKeyDetail());
+				System.out.println("Android MasterKey vulnerability detected.");
+				output.append("Android MasterKey vulnerability detected.\n");
+			}
+			if (result.hasExtraField()) {
+				log.debug(result.getExtraFieldDetail());
+				System.out.println("Android ExtraField vulnerability detected.");
+				output.append("Android ExtraField vulnerability detected.\n");
+			}
+			return 10.0;
+		} else {
+			log.debug("Mo Master Key found");
+			System.out.println("No Android MaskterKey or ExtraField vulnerabilities detected.");
+			output.append("No Android MaskterKey or ExtraField vulnerabilities detected.");
+		}
+		return 0.0;
+	}
 }
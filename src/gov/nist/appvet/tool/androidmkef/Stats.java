@@ -0,0 +1,65 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import gov.nist.appvet.tool.androidmkef.util.Metrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * This class returns the tool's counters and gauges as plain text, one
+ * "name value" pair per line, together with the JVM's platform thread count,
+ * heap usage and heap headroom.
+ */
+public class Stats extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	public Stats() {
+		super();
+	}
+
+	protected void doGet(HttpServletRequest request,
+			HttpServletResponse response) throws ServletException, IOException {
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("text/plain");
+		PrintWriter out = response.getWriter();
+		Runtime runtime = Runtime.getRuntime();
+		Metrics.set("jvm.threads", ManagementFactory.getThreadMXBean()
+				.getThreadCount());
+		long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+		Metrics.set("jvm.heapUsed", heapUsed);
+		Metrics.set("jvm.heapMax", runtime.maxMemory());
+		Metrics.set("memory.headroom", runtime.maxMemory() - heapUsed);
+		for (Map.Entry<String, Long> entry : Metrics.snapshot().entrySet()) {
+			out.println(entry.getKey() + " " + entry.getValue());
+		}
+		out.flush();
+		out.close();
+	}
+}
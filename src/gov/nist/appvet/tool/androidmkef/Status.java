@@ -0,0 +1,85 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * This class returns the status of jobs as plain text: a header line, then
+ * one tab-separated line per requested job (see JobStatus.toLine()). Jobs
+ * are requested with any number of appid and sha256 parameters, by GET or,
+ * for many jobs, by a form POST; a job that is unknown or has expired is
+ * listed with state UNKNOWN.
+ */
+public class Status extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	public Status() {
+		super();
+	}
+
+	protected void doGet(HttpServletRequest request,
+			HttpServletResponse response) throws ServletException, IOException {
+		String[] appIds = request.getParameterValues("appid");
+		String[] hashes = request.getParameterValues("sha256");
+		if (appIds == null && hashes == null) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"No appid or sha256 specified");
+			return;
+		}
+		JobIndex index = JobIndex.getInstance();
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("text/plain");
+		PrintWriter out = response.getWriter();
+		out.println(JobStatus.header());
+		if (appIds != null) {
+			for (String appId : appIds) {
+				print(out, appId, index.getByAppId(appId));
+			}
+		}
+		if (hashes != null) {
+			for (String sha256 : hashes) {
+				print(out, sha256, index.getBySha256(sha256));
+			}
+		}
+		out.flush();
+		out.close();
+	}
+
+	protected void doPost(HttpServletRequest request,
+			HttpServletResponse response) throws ServletException, IOException {
+		doGet(request, response);
+	}
+
+	private static void print(PrintWriter out, String key, JobStatus status) {
+		if (status == null) {
+			out.println(key + "\tUNKNOWN");
+		} else {
+			out.println(status.toLine());
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import gov.nist.appvet.tool.androidmkef.util.Logger;
+import gov.nist.appvet.tool.androidmkef.util.Metrics;
+import gov.nist.appvet.tool.androidmkef.util.ToolStatus;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class caches scan verdicts keyed by the SHA-256 of the app's bytes and
+ * the tool version, including the scan settings that change verdicts, so
+ * that resubmitted apps skip MKEFScanner. Verdicts are
+ * held in a bounded LRU map and appended to an index file under
+ * ANDROID_MKEF_FILES_HOME/cache, which is reloaded at startup and rewritten
+ * once it holds too many superseded lines.
+ */
+public class VerdictCache {
+
+	private static final Logger log = Properties.log;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String INDEX_FILE_NAME = "verdicts.idx";
+	private static VerdictCache instance = null;
+
+	private final int capacity;
+	private final File indexFile;
+	private final LinkedHashMap<String, Verdict> entries;
+	private Writer indexWriter = null;
+	private int indexLines = 0;
+
+	/**
+	 * A cached scan outcome. The report is the short text shown as the
+	 * report's details, held whole; per-entry findings are only logged.
+	 */
+	public static class Verdict {
+		private final double score;
+		private final ToolStatus status;
+		private final String report;
+
+		public Verdict(double score, ToolStatus status, String report) {
+			this.score = score;
+			this.status = status;
+			this.report = report;
+		}
+
+		public double getScore() {
+			return score;
+		}
+
+		public ToolStatus getStatus() {
+			return status;
+		}
+
+		public String getReport() {
+			return report;
+		}
+	}
+
+	/** Returns the shared cache, or null if caching is disabled. */
+	public static synchronized VerdictCache getInstance() {
+		if (instance == null && Properties.verdictCacheSize > 0) {
+			instance = new VerdictCache(new File(Properties.CACHE_DIR,
+					INDEX_FILE_NAME), Properties.verdictCacheSize);
+		}
+		return instance;
+	}
+
+	/**
+	 * Tool version component of every cache key. It ends with the settings
+	 * of /Tool/Scan that change what a scan reports, so that verdicts of a
+	 * weaker scan are not served once CRC verification is turned on.
+	 */
+	public static String getToolVersion() {
+		return Properties.toolVersion + "-" + Properties.version + "-crc"
+				+ (Properties.verifyCrc ? 1 : 0) + "-fast"
+				+ (Properties.fastVerdict ? 1 : 0);
+	}
+
+	public VerdictCache(File indexFile, final int capacity) {
+		this.capacity = capacity;
+		this.indexFile = indexFile;
+		this.entries = new LinkedHashMap<String, Verdict>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+				return size() > capacity;
+			}
+		};
+		load();
+	}
+
+	public synchronized Verdict get(String sha256) {
+		Verdict verdict = entries.get(key(sha256, getToolVersion()));
+		if (verdict == null) {
+			Metrics.increment("verdictCache.misses");
+		} else {
+			Metrics.increment("verdictCache.hits");
+		}
+		return verdict;
+	}
+
+	/** Caches a verdict. ERROR verdicts are not cached. */
+	public synchronized void put(String sha256, Verdict verdict) {
+		if (sha256 == null || verdict.getStatus() == ToolStatus.ERROR) {
+			return;
+		}
+		final String toolVersion = getToolVersion();
+		entries.put(key(sha256, toolVersion), verdict);
+		Metrics.set("verdictCache.size", entries.size());
+		try {
+			if (indexLines >= 4 * capacity) {
+				compact();
+			} else {
+				append(sha256, toolVersion, verdict);
+			}
+		} catch (IOException e) {
+			log.error("Could not update verdict index: " + e.toString());
+		}
+	}
+
+	private static String key(String sha256, String toolVersion) {
+		return sha256 + "/" + toolVersion;
+	}
+
+	/** Loads the index; later lines supersede earlier ones. */
+	private void load() {
+		if (!indexFile.exists()) {
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(indexFile), UTF8));
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				indexLines++;
+				final String[] fields = line.split("\t", -1);
+				if (fields.length != 5) {
+					continue;
+				}
+				final ToolStatus status = ToolStatus.getEnum(fields[3]);
+				if (status == null) {
+					continue;
+				}
+				try {
+					final String report = new String(Base64.getDecoder()
+							.decode(fields[4]), UTF8);
+					entries.put(key(fields[0], fields[1]), new Verdict(
+							Double.parseDouble(fields[2]), status, report));
+				} catch (IllegalArgumentException e) {
+					// Skip a torn or corrupt line
+				}
+			}
+			log.info("Loaded " + entries.size() + " cached verdicts");
+			Metrics.set("verdictCache.size", entries.size());
+		} catch (IOException e) {
+			log.error("Could not read verdict index: " + e.toString());
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void append(String sha256, String toolVersion, Verdict verdict)
+			throws IOException {
+		if (indexWriter == null) {
+			indexFile.getParentFile().mkdirs();
+			indexWriter = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(indexFile, true), UTF8));
+		}
+		writeLine(indexWriter, sha256, toolVersion, verdict);
+		indexWriter.flush();
+		indexLines++;
+	}
+
+	/** Rewrites the index with only the entries currently held in memory. */
+	private void compact() throws IOException {
+		if (indexWriter != null) {
+			indexWriter.close();
+			indexWriter = null;
+		}
+		final File tempFile = new File(indexFile.getPath() + ".tmp");
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(tempFile), UTF8));
+		final ArrayList<Map.Entry<String, Verdict>> snapshot = new ArrayList<Map.Entry<String, Verdict>>(
+				entries.entrySet());
+		try {
+			for (Map.Entry<String, Verdict> entry : snapshot) {
+				final String key = entry.getKey();
+				final int slash = key.indexOf('/');
+				writeLine(writer, key.substring(0, slash),
+						key.substring(slash + 1), entry.getValue());
+			}
+		} finally {
+			writer.close();
+		}
+		Files.move(tempFile.toPath(), indexFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		indexLines = snapshot.size();
+		log.debug("Compacted verdict index to " + indexLines + " entries");
+	}
+
+	private static void writeLine(Writer writer, String sha256,
+			String toolVersion, Verdict verdict) throws IOException {
+		writer.write(sha256);
+		writer.write('\t');
+		writer.write(toolVersion);
+		writer.write('\t');
+		writer.write(Double.toString(verdict.getScore()));
+		writer.write('\t');
+		writer.write(verdict.getStatus().name());
+		writer.write('\t');
+		writer.write(Base64.getEncoder().encodeToString(
+				verdict.getReport().getBytes(UTF8)));
+		writer.write('\n');
+	}
+}
@@ -157,6 +157,33 @@ public class FileUtil {
 		}
 	}
 
+	/** Renames sourceFilePath to destFilePath unless they are the same. */
+	public static boolean moveFile(String sourceFilePath, String destFilePath) {
+		if (sourceFilePath.equals(destFilePath)) {
+			return true;
+		}
+		try {
+			Files.move(new File(sourceFilePath).toPath(),
+					new File(destFilePath).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		} catch (IOException e) {
+			log.error(e.toString());
+			return false;
+		}
+	}
+
+	/** Returns the lower-case hexadecimal form of bytes. */
+	public static String toHex(byte[] bytes) {
+		final char[] digits = "0123456789abcdef".toCharArray();
+		final char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = digits[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = digits[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
 	public static String replaceSpaceWithUnderscore(String str) {
 		return str.replaceAll(" ", "_");
 	}
@@ -61,6 +61,23 @@ public class HttpUtil {
 	}
     }
 
+    public static boolean sendHttp503(HttpServletResponse response,
+	    String message, int retryAfterSeconds) {
+	try {
+	    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+	    response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+	    response.setContentType("text/html");
+	    PrintWriter out = response.getWriter();
+	    out.println(message);
+	    out.flush();
+	    out.close();
+	    return true;
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    return false;
+	}
+    }
+
     public static boolean sendHttp500(HttpServletResponse response,
 	    String message) {
 	try {
@@ -0,0 +1,75 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide named counters and gauges.
+ */
+public class Metrics {
+
+	private static final ConcurrentHashMap<String, AtomicLong> values = new ConcurrentHashMap<String, AtomicLong>();
+
+	private Metrics() {
+	}
+
+	private static AtomicLong get(String name) {
+		AtomicLong value = values.get(name);
+		if (value == null) {
+			final AtomicLong created = new AtomicLong();
+			value = values.putIfAbsent(name, created);
+			if (value == null) {
+				value = created;
+			}
+		}
+		return value;
+	}
+
+	public static long increment(String name) {
+		return get(name).incrementAndGet();
+	}
+
+	public static long add(String name, long delta) {
+		return get(name).addAndGet(delta);
+	}
+
+	/** Sets a gauge to the given value. */
+	public static void set(String name, long value) {
+		get(name).set(value);
+	}
+
+	public static long value(String name) {
+		final AtomicLong value = values.get(name);
+		return value == null ? 0 : value.get();
+	}
+
+	/** Returns all counters and gauges sorted by name. */
+	public static Map<String, Long> snapshot() {
+		final TreeMap<String, Long> snapshot = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : values.entrySet()) {
+			snapshot.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+		}
+		return snapshot;
+	}
+}
@@ -0,0 +1,626 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef.util;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A minimal PDF writer for tool reports: pages of text in the standard
+ * Helvetica and Courier fonts, plus JPEG and PNG images. Objects are written
+ * out as soon as they are complete. Coordinates are in points from the
+ * bottom left corner of the page.
+ */
+public class PdfDocument {
+
+	public static final String HELVETICA = "F1";
+	public static final String HELVETICA_BOLD = "F2";
+	public static final String COURIER = "F3";
+
+	/** Width of every Courier glyph, per point of font size. */
+	public static final float COURIER_ADVANCE = 0.6f;
+
+	private static final String[][] FONTS = { { HELVETICA, "Helvetica" },
+			{ HELVETICA_BOLD, "Helvetica-Bold" }, { COURIER, "Courier" } };
+	private static final int CATALOG_REF = 3;
+	private static final byte[] END_OBJ = ascii("\nendobj\n");
+	private static final byte[] END_STREAM = ascii("\nendstream");
+
+	private static final byte[] HEADER = { '%', 'P', 'D', 'F', '-', '1',
+			'.', '4', '\n', '%', (byte) 0xE2, (byte) 0xE3, (byte) 0xCF,
+			(byte) 0xD3, '\n' };
+
+	private final float width;
+	private final float height;
+	/** Where objects are written as soon as they are complete. */
+	private final OutputStream out;
+	/** The bytes of a document built in memory, or null. */
+	private final ByteArrayOutputStream memory;
+	private long position = 0;
+	/** Offsets of the objects; object n is at index n - 1. */
+	private long[] offsets = new long[16];
+	private int objectCount = 0;
+	private final List<Integer> pages;
+	private final Map<Image, String> images;
+	private final StringBuilder imageResources = new StringBuilder();
+	private final int pagesRef;
+	private final int resourcesRef;
+	private boolean resourcesWritten = false;
+	/** Template content drawn before the current page's own, or 0. */
+	private int templateContentRef = 0;
+	/** Content of the current page, reused for every page. */
+	private final StringBuilder content = new StringBuilder(4096);
+	private boolean pageOpen = false;
+	/** Buffers reused to compress every page. */
+	private final Deflater deflater = new Deflater();
+	private final ByteArrayOutputStream deflated = new ByteArrayOutputStream(
+			4096);
+	private byte[] encoded = new byte[4096];
+	private final byte[] chunk = new byte[4096];
+
+	/**
+	 * Starts a document built in memory, to be returned by toByteArray or
+	 * made into a template.
+	 */
+	public PdfDocument(float width, float height) {
+		this.width = width;
+		this.height = height;
+		this.memory = new ByteArrayOutputStream();
+		this.out = memory;
+		this.pages = new ArrayList<Integer>();
+		this.images = new IdentityHashMap<Image, String>();
+		memory.write(HEADER, 0, HEADER.length);
+		position = HEADER.length;
+		pagesRef = reserve();
+		resourcesRef = reserve();
+		int catalogRef = reserve();
+		byte[] catalog = ascii("<< /Type /Catalog /Pages " + pagesRef
+				+ " 0 R >>");
+		offsets[catalogRef - 1] = position;
+		writeObjectTo(memory, catalogRef, catalog);
+		position = memory.size();
+	}
+
+	/**
+	 * Starts a document from a template, writing it to out: the template's
+	 * bytes are copied as they are, and drawing continues on the template's
+	 * current page. Each page is written when it ends, so only the current
+	 * page is held in memory.
+	 */
+	public PdfDocument(Template template, OutputStream out)
+			throws IOException {
+		this.width = template.width;
+		this.height = template.height;
+		this.memory = null;
+		this.out = out;
+		this.offsets = Arrays.copyOf(template.offsets,
+				template.offsets.length + 16);
+		this.objectCount = template.offsets.length;
+		this.pages = new ArrayList<Integer>(template.pages);
+		this.images = template.images;
+		this.pagesRef = template.pagesRef;
+		this.resourcesRef = template.resourcesRef;
+		this.resourcesWritten = true;
+		this.templateContentRef = template.contentRef;
+		this.pageOpen = true;
+		write(template.head);
+	}
+
+	public float getWidth() {
+		return width;
+	}
+
+	public float getHeight() {
+		return height;
+	}
+
+	/** Ends the current page, if any, and starts a new one. */
+	public void newPage() throws IOException {
+		endPage();
+		content.setLength(0);
+		pageOpen = true;
+	}
+
+	/** Draws a single line of text with its baseline at y. */
+	public void drawText(String font, float size, Color color, float x,
+			float y, String text) throws IOException {
+		drawText(font, size, color, x, y, text, 0, text.length());
+	}
+
+	/** Draws the characters of text from start to end. */
+	public void drawText(String font, float size, Color color, float x,
+			float y, CharSequence text, int start, int end)
+			throws IOException {
+		StringBuilder page = page().append("BT\n");
+		rgb(page, color).append(" rg\n/").append(font).append(' ');
+		number(page, size).append(" Tf\n");
+		number(page, x).append(' ');
+		number(page, y).append(" Td\n(");
+		escape(page, text, start, end).append(") Tj\nET\n");
+	}
+
+	/**
+	 * Draws an image scaled to the given box. Documents made from a template
+	 * can only draw the template's images.
+	 */
+	public void drawImage(Image image, float x, float y, float boxWidth,
+			float boxHeight) throws IOException {
+		String name = images.get(image);
+		if (name == null) {
+			if (resourcesWritten) {
+				throw new IllegalStateException(
+						"Image not in the template of this document");
+			}
+			name = "Im" + (images.size() + 1);
+			images.put(image, name);
+			imageResources.append('/').append(name).append(' ')
+					.append(image.write(this)).append(" 0 R ");
+		}
+		StringBuilder page = page().append("q\n");
+		number(page, boxWidth).append(" 0 0 ");
+		number(page, boxHeight).append(' ');
+		number(page, x).append(' ');
+		number(page, y).append(" cm\n/").append(name).append(" Do\nQ\n");
+	}
+
+	/**
+	 * Returns a template of this in-memory document as drawn so far, from
+	 * which any number of documents can be started. This document must not
+	 * be used afterwards.
+	 */
+	public Template toTemplate() throws IOException {
+		writeResources();
+		int contentRef = templateContentRef;
+		if (pageOpen) {
+			contentRef = addContent();
+			pageOpen = false;
+		}
+		deflater.end();
+		return new Template(width, height, memory.toByteArray(),
+				Arrays.copyOf(offsets, objectCount), pages, images, pagesRef,
+				resourcesRef, contentRef);
+	}
+
+	/**
+	 * Ends the document: writes its last page, page tree and cross-reference
+	 * table, and flushes the output.
+	 */
+	public void finish() throws IOException {
+		if (!pageOpen && pages.isEmpty()) {
+			newPage();
+		}
+		endPage();
+		writeResources();
+
+		// The page tree comes last, once all pages are known
+		StringBuilder tree = new StringBuilder(64 + pages.size() * 8);
+		tree.append("<< /Type /Pages /Kids [ ");
+		for (Integer page : pages) {
+			tree.append(page.intValue()).append(" 0 R ");
+		}
+		tree.append("] /Count ").append(pages.size()).append(" >>");
+		writeObject(pagesRef, ascii(tree.toString()));
+
+		long xref = position;
+		StringBuilder trailer = new StringBuilder(64 + objectCount * 20);
+		trailer.append("xref\n0 ").append(objectCount + 1)
+				.append("\n0000000000 65535 f \n");
+		for (int i = 0; i < objectCount; i++) {
+			String digits = Long.toString(offsets[i]);
+			for (int j = digits.length(); j < 10; j++) {
+				trailer.append('0');
+			}
+			trailer.append(digits).append(" 00000 n \n");
+		}
+		trailer.append("trailer\n<< /Size ").append(objectCount + 1)
+				.append(" /Root ").append(CATALOG_REF)
+				.append(" 0 R >>\nstartxref\n").append(xref)
+				.append("\n%%EOF\n");
+		write(ascii(trailer.toString()));
+		out.flush();
+		deflater.end();
+	}
+
+	/** Ends this in-memory document and returns its bytes. */
+	public byte[] toByteArray() throws IOException {
+		finish();
+		return memory.toByteArray();
+	}
+
+	private StringBuilder page() throws IOException {
+		if (!pageOpen) {
+			newPage();
+		}
+		return content;
+	}
+
+	private void endPage() throws IOException {
+		if (!pageOpen) {
+			return;
+		}
+		int contentRef = addContent();
+		pageOpen = false;
+		String contents = contentRef + " 0 R";
+		if (templateContentRef != 0) {
+			contents = "[ " + templateContentRef + " 0 R " + contents + " ]";
+			templateContentRef = 0;
+		}
+		pages.add(add(ascii("<< /Type /Page /Parent " + pagesRef
+				+ " 0 R /MediaBox [ 0 0 " + number(width) + " "
+				+ number(height) + " ] /Resources " + resourcesRef
+				+ " 0 R /Contents " + contents + " >>")));
+	}
+
+	private void writeResources() throws IOException {
+		if (resourcesWritten) {
+			return;
+		}
+		StringBuilder fonts = new StringBuilder();
+		for (String[] font : FONTS) {
+			fonts.append('/').append(font[0]).append(" << /Type /Font")
+					.append(" /Subtype /Type1 /BaseFont /").append(font[1])
+					.append(" /Encoding /WinAnsiEncoding >> ");
+		}
+		String xObjects = imageResources.length() > 0 ? " /XObject << "
+				+ imageResources + ">>" : "";
+		writeObject(resourcesRef, ascii("<< /ProcSet [ /PDF /Text"
+				+ " /ImageB /ImageC ] /Font << " + fonts + ">>" + xObjects
+				+ " >>"));
+		resourcesWritten = true;
+	}
+
+	/** Numbers an object that is written later. */
+	private int reserve() {
+		if (objectCount == offsets.length) {
+			offsets = Arrays.copyOf(offsets, objectCount * 2);
+		}
+		return ++objectCount;
+	}
+
+	private int add(byte[] body) throws IOException {
+		int ref = reserve();
+		writeObject(ref, body);
+		return ref;
+	}
+
+	private void writeObject(int ref, byte[] body) throws IOException {
+		offsets[ref - 1] = position;
+		write(ascii(ref + " 0 obj\n"));
+		write(body);
+		write(END_OBJ);
+	}
+
+	private static void writeObjectTo(ByteArrayOutputStream out, int ref,
+			byte[] body) {
+		byte[] start = ascii(ref + " 0 obj\n");
+		out.write(start, 0, start.length);
+		out.write(body, 0, body.length);
+		out.write(END_OBJ, 0, END_OBJ.length);
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		out.write(bytes, 0, bytes.length);
+		position += bytes.length;
+	}
+
+	/** Adds a stream object holding data as it is. */
+	private int addStream(String dictionary, byte[] data) throws IOException {
+		int ref = reserve();
+		offsets[ref - 1] = position;
+		write(ascii(ref + " 0 obj\n<< " + dictionary + " /Length "
+				+ data.length + " >>\nstream\n"));
+		write(data);
+		write(END_STREAM);
+		write(END_OBJ);
+		return ref;
+	}
+
+	/** Adds the content of the current page as a compressed stream. */
+	private int addContent() throws IOException {
+		int length = content.length();
+		if (encoded.length < length) {
+			encoded = new byte[Math.max(length, encoded.length * 2)];
+		}
+		for (int i = 0; i < length; i++) {
+			encoded[i] = (byte) content.charAt(i);
+		}
+		deflater.reset();
+		deflater.setInput(encoded, 0, length);
+		deflater.finish();
+		deflated.reset();
+		while (!deflater.finished()) {
+			int n = deflater.deflate(chunk);
+			deflated.write(chunk, 0, n);
+		}
+		int ref = reserve();
+		offsets[ref - 1] = position;
+		write(ascii(ref + " 0 obj\n<< /Filter /FlateDecode /Length "
+				+ deflated.size() + " >>\nstream\n"));
+		deflated.writeTo(out);
+		position += deflated.size();
+		write(END_STREAM);
+		write(END_OBJ);
+		return ref;
+	}
+
+	private static byte[] deflate(byte[] data) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				data.length / 2 + 64);
+		try {
+			DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+			deflater.write(data);
+			deflater.close();
+		} catch (IOException e) {
+			// Not thrown by in-memory streams
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	private static StringBuilder rgb(StringBuilder out, Color color) {
+		if (color == null) {
+			color = Color.BLACK;
+		}
+		number(out, color.getRed() / 255f).append(' ');
+		number(out, color.getGreen() / 255f).append(' ');
+		return number(out, color.getBlue() / 255f);
+	}
+
+	private static String number(float value) {
+		return number(new StringBuilder(), value).toString();
+	}
+
+	/** Appends a number with at most three decimals. */
+	private static StringBuilder number(StringBuilder out, float value) {
+		if (value < 0) {
+			out.append('-');
+			value = -value;
+		}
+		long thousandths = Math.round(value * 1000.0);
+		out.append(thousandths / 1000);
+		int fraction = (int) (thousandths % 1000);
+		if (fraction != 0) {
+			out.append('.');
+			if (fraction < 100) {
+				out.append('0');
+			}
+			if (fraction < 10) {
+				out.append('0');
+			}
+			while (fraction % 10 == 0) {
+				fraction /= 10;
+			}
+			out.append(fraction);
+		}
+		return out;
+	}
+
+	/**
+	 * Appends a string as a PDF literal. Control characters are dropped and
+	 * characters outside Latin-1 are replaced by '?'.
+	 */
+	private static StringBuilder escape(StringBuilder out, CharSequence text,
+			int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (c == '(' || c == ')' || c == '\\') {
+				out.append('\\').append(c);
+			} else if (c < ' ') {
+				continue;
+			} else if (c > 0xFF) {
+				out.append('?');
+			} else {
+				out.append(c);
+			}
+		}
+		return out;
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * The fixed part of documents that differ only in text drawn after it:
+	 * its objects are serialized once and copied into each document.
+	 */
+	public static class Template {
+
+		private final float width;
+		private final float height;
+		private final byte[] head;
+		private final long[] offsets;
+		private final List<Integer> pages;
+		private final Map<Image, String> images;
+		private final int pagesRef;
+		private final int resourcesRef;
+		private final int contentRef;
+
+		private Template(float width, float height, byte[] head,
+				long[] offsets, List<Integer> pages, Map<Image, String> images,
+				int pagesRef, int resourcesRef, int contentRef) {
+			this.width = width;
+			this.height = height;
+			this.head = head;
+			this.offsets = offsets;
+			this.pages = Collections.unmodifiableList(new ArrayList<Integer>(
+					pages));
+			this.images = Collections.unmodifiableMap(
+					new IdentityHashMap<Image, String>(images));
+			this.pagesRef = pagesRef;
+			this.resourcesRef = resourcesRef;
+			this.contentRef = contentRef;
+		}
+	}
+
+	/**
+	 * An image that can be drawn in any number of documents. JPEG files are
+	 * embedded as they are; other formats are decoded and recompressed.
+	 */
+	public static class Image {
+
+		private final int pixelWidth;
+		private final int pixelHeight;
+		private final String colorSpace;
+		private final byte[] data;
+		private final boolean jpeg;
+		private final byte[] alpha;
+
+		private Image(int pixelWidth, int pixelHeight, String colorSpace,
+				byte[] data, boolean jpeg, byte[] alpha) {
+			this.pixelWidth = pixelWidth;
+			this.pixelHeight = pixelHeight;
+			this.colorSpace = colorSpace;
+			this.data = data;
+			this.jpeg = jpeg;
+			this.alpha = alpha;
+		}
+
+		/** Reads a JPEG, PNG or GIF file, or returns null if it cannot. */
+		public static Image read(String path) {
+			File file = new File(path);
+			if (!file.isFile()) {
+				return null;
+			}
+			try {
+				byte[] bytes = Files.readAllBytes(file.toPath());
+				Image image = readJpeg(bytes);
+				if (image != null) {
+					return image;
+				}
+				BufferedImage decoded = ImageIO.read(file);
+				if (decoded == null) {
+					return null;
+				}
+				return fromBufferedImage(decoded);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		public int getPixelWidth() {
+			return pixelWidth;
+		}
+
+		public int getPixelHeight() {
+			return pixelHeight;
+		}
+
+		/** Writes the image objects into a document and returns its ref. */
+		private int write(PdfDocument document) throws IOException {
+			String dictionary = "/Type /XObject /Subtype /Image /Width "
+					+ pixelWidth + " /Height " + pixelHeight
+					+ " /BitsPerComponent 8";
+			String mask = "";
+			if (alpha != null) {
+				int maskRef = document.addStream(dictionary
+						+ " /ColorSpace /DeviceGray /Filter /FlateDecode",
+						alpha);
+				mask = " /SMask " + maskRef + " 0 R";
+			}
+			if (jpeg) {
+				return document.addStream(dictionary + " /ColorSpace /"
+						+ colorSpace + mask + " /Filter /DCTDecode", data);
+			}
+			return document.addStream(dictionary + " /ColorSpace /"
+					+ colorSpace + mask + " /Filter /FlateDecode", data);
+		}
+
+		/**
+		 * Returns the image for a baseline or progressive JPEG, or null if
+		 * the bytes are not one.
+		 */
+		private static Image readJpeg(byte[] bytes) {
+			if (bytes.length < 4 || (bytes[0] & 0xFF) != 0xFF
+					|| (bytes[1] & 0xFF) != 0xD8) {
+				return null;
+			}
+			int i = 2;
+			while (i + 9 < bytes.length) {
+				if ((bytes[i] & 0xFF) != 0xFF) {
+					return null;
+				}
+				int marker = bytes[i + 1] & 0xFF;
+				if (marker == 0xFF) {
+					// Fill byte
+					i++;
+					continue;
+				}
+				int length = ((bytes[i + 2] & 0xFF) << 8)
+						| (bytes[i + 3] & 0xFF);
+				// SOF markers, except DHT (C4), JPG (C8) and DAC (CC)
+				if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4
+						&& marker != 0xC8 && marker != 0xCC) {
+					int h = ((bytes[i + 5] & 0xFF) << 8)
+							| (bytes[i + 6] & 0xFF);
+					int w = ((bytes[i + 7] & 0xFF) << 8)
+							| (bytes[i + 8] & 0xFF);
+					int components = bytes[i + 9] & 0xFF;
+					String colorSpace = components == 1 ? "DeviceGray"
+							: components == 4 ? "DeviceCMYK" : "DeviceRGB";
+					return new Image(w, h, colorSpace, bytes, true, null);
+				}
+				i += 2 + length;
+			}
+			return null;
+		}
+
+		private static Image fromBufferedImage(BufferedImage decoded) {
+			int w = decoded.getWidth();
+			int h = decoded.getHeight();
+			boolean hasAlpha = decoded.getColorModel().hasAlpha();
+			byte[] rgb = new byte[w * h * 3];
+			byte[] alpha = hasAlpha ? new byte[w * h] : null;
+			int[] row = new int[w];
+			for (int y = 0; y < h; y++) {
+				decoded.getRGB(0, y, w, 1, row, 0, w);
+				for (int x = 0; x < w; x++) {
+					int argb = row[x];
+					int p = y * w + x;
+					rgb[p * 3] = (byte) (argb >> 16);
+					rgb[p * 3 + 1] = (byte) (argb >> 8);
+					rgb[p * 3 + 2] = (byte) argb;
+					if (alpha != null) {
+						alpha[p] = (byte) (argb >>> 24);
+					}
+				}
+			}
+			return new Image(w, h, "DeviceRGB", deflate(rgb), false,
+					alpha != null ? deflate(alpha) : null);
+		}
+	}
+}
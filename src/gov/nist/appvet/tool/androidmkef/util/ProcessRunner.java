@@ -0,0 +1,361 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef.util;
+
+import gov.nist.appvet.tool.androidmkef.Properties;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Runs external commands. At most /Tool/Process/MaxConcurrent commands run
+ * at once; others wait for a slot. The output and error streams of each
+ * process are read by a pool of two threads per slot, or by virtual threads
+ * if enabled, and at most /Tool/Process/MaxOutputBytes of each is kept. A command running
+ * longer than its timeout is killed together with its descendants (Java 9
+ * or later; on Java 8 only the process itself is killed).
+ * <p>
+ * For each command name, Metrics counts process.name.runs, .failures,
+ * .timeouts and .millis, and keeps .lastMillis. process.running and
+ * process.waiting are gauges and process.waitMillis is the total time spent
+ * waiting for a slot.
+ * <p>
+ * IMPORTANT: Make sure that tools to execute are in a user-owned directory
+ * with executable permissions for root. Otherwise, they may not execute
+ * properly.
+ */
+public class ProcessRunner {
+
+	private static final Logger log = Properties.log;
+	/** Time given to drainers to reach end of stream after an exit. */
+	private static final long DRAIN_GRACE_MILLIS = 1000;
+	private static ProcessRunner instance = null;
+
+	private static final Method descendants;
+	private static final Method destroyHandle;
+
+	static {
+		Method descendantsMethod = null;
+		Method destroyMethod = null;
+		try {
+			// Looked up reflectively so that the tool still runs on Java 8
+			descendantsMethod = Process.class.getMethod("descendants");
+			destroyMethod = Class.forName("java.lang.ProcessHandle")
+					.getMethod("destroyForcibly");
+		} catch (ReflectiveOperationException e) {
+			descendantsMethod = null;
+		}
+		descendants = descendantsMethod;
+		destroyHandle = destroyMethod;
+	}
+
+	private final Semaphore slots;
+	private final int maxOutputBytes;
+	private final ThreadPoolExecutor drainers;
+
+	/** Returns the runner configured in ToolProperties.xml. */
+	public static synchronized ProcessRunner getInstance() {
+		if (instance == null) {
+			int maxConcurrent = Properties.processMaxConcurrent;
+			if (maxConcurrent <= 0) {
+				maxConcurrent = Runtime.getRuntime().availableProcessors();
+			}
+			instance = new ProcessRunner(maxConcurrent,
+					Properties.processMaxOutputBytes);
+			log.info("Running at most " + maxConcurrent
+					+ " external processes at once");
+		}
+		return instance;
+	}
+
+	public ProcessRunner(int maxConcurrent, int maxOutputBytes) {
+		this.slots = new Semaphore(maxConcurrent, true);
+		this.maxOutputBytes = maxOutputBytes;
+		final AtomicInteger count = new AtomicInteger();
+		// Two streams per process. A drainer that is still ending after its
+		// process released its slot only delays the next one in the queue.
+		final int maxDrainers = 2 * maxConcurrent;
+		this.drainers = new ThreadPoolExecutor(maxDrainers, maxDrainers, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "mkef-drain-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.drainers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Splits a command line into arguments at whitespace. Single or double
+	 * quotes group words into one argument and are removed.
+	 */
+	public static List<String> split(String command) {
+		List<String> args = new ArrayList<String>();
+		StringBuilder arg = null;
+		char quote = 0;
+		for (int i = 0; i < command.length(); i++) {
+			char c = command.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				} else {
+					arg.append(c);
+				}
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+				if (arg == null) {
+					arg = new StringBuilder();
+				}
+			} else if (Character.isWhitespace(c)) {
+				if (arg != null) {
+					args.add(arg.toString());
+					arg = null;
+				}
+			} else {
+				if (arg == null) {
+					arg = new StringBuilder();
+				}
+				arg.append(c);
+			}
+		}
+		if (arg != null) {
+			args.add(arg.toString());
+		}
+		return args;
+	}
+
+	/**
+	 * Runs a command and waits for it to exit or time out. name identifies
+	 * the command in Metrics; a timeout of 0 or less waits indefinitely.
+	 */
+	public Result run(String name, List<String> command, long timeoutMillis) {
+		String prefix = "process." + name;
+		Metrics.increment(prefix + ".runs");
+		if (command.isEmpty()) {
+			Metrics.increment(prefix + ".failures");
+			return new Result(-1, false, "", "No command configured for "
+					+ name);
+		}
+		long waitStart = System.nanoTime();
+		Metrics.increment("process.waiting");
+		try {
+			slots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Metrics.increment(prefix + ".failures");
+			return new Result(-1, false, "", "Interrupted waiting to run "
+					+ name);
+		} finally {
+			Metrics.add("process.waiting", -1);
+			Metrics.add("process.waitMillis",
+					(System.nanoTime() - waitStart) / 1000000);
+		}
+		Metrics.increment("process.running");
+		long start = System.nanoTime();
+		try {
+			Result result = execute(command, timeoutMillis);
+			if (result.isTimedOut()) {
+				Metrics.increment(prefix + ".timeouts");
+			}
+			if (!result.isSuccess()) {
+				Metrics.increment(prefix + ".failures");
+			}
+			return result;
+		} finally {
+			long millis = (System.nanoTime() - start) / 1000000;
+			Metrics.add(prefix + ".millis", millis);
+			Metrics.set(prefix + ".lastMillis", millis);
+			Metrics.add("process.running", -1);
+			slots.release();
+		}
+	}
+
+	private Result execute(List<String> command, long timeoutMillis) {
+		Process process = null;
+		FutureTask<String> output = null;
+		FutureTask<String> error = null;
+		try {
+			process = new ProcessBuilder(command).start();
+			process.getOutputStream().close();
+			output = drain(process.getInputStream());
+			error = drain(process.getErrorStream());
+			boolean exited = true;
+			if (timeoutMillis > 0) {
+				exited = process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS);
+			} else {
+				process.waitFor();
+			}
+			if (!exited) {
+				log.warn("Killing " + command.get(0) + " after "
+						+ timeoutMillis + " ms");
+				killTree(process);
+			}
+			String out = collect(output, process.getInputStream());
+			String err = collect(error, process.getErrorStream());
+			if (!exited) {
+				return new Result(-1, true, out, err.isEmpty() ? command.get(0)
+						+ " timed out" : err);
+			}
+			return new Result(process.exitValue(), false, out, err);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new Result(-1, false, "", e.toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if (process != null) {
+				killTree(process);
+			}
+			return new Result(-1, false, "", "Interrupted running "
+					+ command.get(0));
+		}
+	}
+
+	/** Starts reading a stream, keeping at most maxOutputBytes of it. */
+	private FutureTask<String> drain(final InputStream in) {
+		FutureTask<String> task = new FutureTask<String>(
+				new Callable<String>() {
+					public String call() throws IOException {
+						ByteArrayOutputStream kept = new ByteArrayOutputStream();
+						byte[] buffer = new byte[8192];
+						int n;
+						try {
+							while ((n = in.read(buffer)) != -1) {
+								int room = maxOutputBytes - kept.size();
+								if (room > 0) {
+									kept.write(buffer, 0, Math.min(n, room));
+								}
+							}
+						} finally {
+							in.close();
+						}
+						return kept.toString();
+					}
+				});
+		if (Properties.virtualThreads && Threads.isVirtualAvailable()) {
+			Threads.start("mkef-drain", task, true);
+		} else {
+			drainers.execute(task);
+		}
+		return task;
+	}
+
+	/**
+	 * Returns what a drainer read. If the stream is still held open, for
+	 * example by a surviving grandchild, it is closed after a grace period.
+	 */
+	private static String collect(FutureTask<String> drainer, InputStream in)
+			throws InterruptedException {
+		try {
+			return drainer.get(DRAIN_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			try {
+				in.close();
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+			return "";
+		} catch (ExecutionException e) {
+			// The stream was closed under the drainer
+			return "";
+		}
+	}
+
+	/** Forcibly kills a process and, where supported, its descendants. */
+	private static void killTree(Process process) {
+		if (descendants != null) {
+			try {
+				// Collect descendants before the parent dies and they are
+				// reparented
+				Object[] handles = ((Stream<?>) descendants.invoke(process))
+						.toArray();
+				process.destroyForcibly();
+				for (Object handle : handles) {
+					destroyHandle.invoke(handle);
+				}
+			} catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
+		}
+		process.destroyForcibly();
+		try {
+			process.waitFor(DRAIN_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Metrics.increment("process.killed");
+	}
+
+	/** The outcome of a command. */
+	public static class Result {
+
+		private final int exitValue;
+		private final boolean timedOut;
+		private final String output;
+		private final String error;
+
+		Result(int exitValue, boolean timedOut, String output, String error) {
+			this.exitValue = exitValue;
+			this.timedOut = timedOut;
+			this.output = output;
+			this.error = error;
+		}
+
+		/** Returns true if the command exited with 0 within its timeout. */
+		public boolean isSuccess() {
+			return exitValue == 0 && !timedOut;
+		}
+
+		public int getExitValue() {
+			return exitValue;
+		}
+
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+
+		/** Returns the start of the standard output of the command. */
+		public String getOutput() {
+			return output;
+		}
+
+		/** Returns the start of the standard error of the command. */
+		public String getError() {
+			return error;
+		}
+	}
+}
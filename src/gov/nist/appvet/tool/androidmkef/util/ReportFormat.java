@@ -20,10 +20,22 @@
 package gov.nist.appvet.tool.androidmkef.util;
 
 public enum ReportFormat {
-    HTML,
-    TXT,
-	PDF,
-	JSON;
+    HTML("text/html; charset=UTF-8"),
+    TXT("text/plain; charset=UTF-8"),
+	PDF("application/pdf"),
+	JSON("application/json; charset=UTF-8"),
+	XML("application/xml; charset=UTF-8");
+
+    private final String contentType;
+
+    private ReportFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /** Returns the HTTP content type of reports in this format. */
+    public String getContentType() {
+        return contentType;
+    }
 
     private static final ReportFormat[] copyOfValues = values();
     
@@ -0,0 +1,111 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef.util;
+
+import gov.nist.appvet.tool.androidmkef.Properties;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The parts of a report that depend only on its status, the tool version
+ * and the logos, rendered once by ReportUtil. Reports of a job fill in its
+ * file name, date and details.
+ */
+class ReportSkeleton {
+
+	private final ToolStatus status;
+	private final String toolName;
+	private final String toolVersion;
+	/** HTML before the file name, the date and the details, and after. */
+	private final String[] html;
+	private final int htmlLength;
+	private final PdfDocument.Template pdf;
+	/** Where the PDF content after the title starts. */
+	private final float pdfY;
+	private final String pdfScoreLabel;
+	private final Color pdfScoreColor;
+
+	ReportSkeleton(ToolStatus status, String[] html,
+			PdfDocument.Template pdf, float pdfY, String pdfScoreLabel,
+			Color pdfScoreColor) {
+		this.status = status;
+		this.toolName = Properties.toolName;
+		this.toolVersion = Properties.toolVersion;
+		this.html = html;
+		int length = 0;
+		for (String part : html) {
+			length += part.length();
+		}
+		this.htmlLength = length;
+		this.pdf = pdf;
+		this.pdfY = pdfY;
+		this.pdfScoreLabel = pdfScoreLabel;
+		this.pdfScoreColor = pdfScoreColor;
+	}
+
+	/** Returns true if this skeleton is current for reports of status. */
+	boolean isFor(ToolStatus status) {
+		return this.status == status && equal(toolName, Properties.toolName)
+				&& equal(toolVersion, Properties.toolVersion);
+	}
+
+	/** Returns the HTML report with the given fields filled in. */
+	String getHtml(String fileName, String date, String report) {
+		StringBuilder out = new StringBuilder(htmlLength + fileName.length()
+				+ date.length() + report.length());
+		return out.append(html[0]).append(fileName).append(html[1])
+				.append(date).append(html[2]).append(report).append(html[3])
+				.toString();
+	}
+
+	/** Writes the HTML report with the given fields filled in. */
+	void writeHtml(Writer out, String fileName, String date, String report)
+			throws IOException {
+		out.write(html[0]);
+		out.write(fileName);
+		out.write(html[1]);
+		out.write(date);
+		out.write(html[2]);
+		out.write(report);
+		out.write(html[3]);
+	}
+
+	PdfDocument.Template getPdf() {
+		return pdf;
+	}
+
+	float getPdfY() {
+		return pdfY;
+	}
+
+	String getPdfScoreLabel() {
+		return pdfScoreLabel;
+	}
+
+	Color getPdfScoreColor() {
+		return pdfScoreColor;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -19,13 +19,23 @@
  */
 package gov.nist.appvet.tool.androidmkef.util;
 
+import java.awt.Color;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.Base64;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -45,6 +55,21 @@ import gov.nist.appvet.tool.androidmkef.Properties;
 public class ReportUtil {
 
 	private static final Logger log = Properties.log;
+	/** US Letter page size and margin of PDF reports, in points. */
+	private static final float PDF_WIDTH = 612f;
+	private static final float PDF_HEIGHT = 792f;
+	private static final float PDF_MARGIN = 54f;
+	private static final float PDF_TEXT_SIZE = 10f;
+	private static final int WRITE_BUFFER_SIZE = 8192;
+	private static final String DHS_LOGO_PATH = getLogoPath("dhs.jpg");
+	private static final String APPVET_LOGO_PATH = getLogoPath("appvet.png");
+	private static final DateTimeFormatter REPORT_DATE = DateTimeFormatter
+			.ofPattern("yyyy-MM-dd' 'HH:mm:ss.SSSZ");
+	/** Report skeletons by ToolStatus ordinal. */
+	private static final AtomicReferenceArray<ReportSkeleton> skeletons = new AtomicReferenceArray<ReportSkeleton>(
+			ToolStatus.values().length);
+	/** Logos read for PDF reports, by path. */
+	private static final HashMap<String, PdfDocument.Image> pdfLogos = new HashMap<String, PdfDocument.Image>();
 
 
 
@@ -133,18 +158,240 @@ public class ReportUtil {
 			String fileName, ToolStatus reportStatus, String report,
 			String lowDescription, String moderateDescription,
 			String highDescription, String errorDescription) {
-		
-		String dhsLogoPath = null;
-		String appvetLogoPath = null;
-		String toolOS = System.getProperty("os.name");
-		if (toolOS.toUpperCase().indexOf("WIN") > -1) {
-			dhsLogoPath = "C:\\appvet_tools\\android_mkef_files\\images\\dhs.jpg";
-			appvetLogoPath = "C:\\appvet_tools\\android_mkef_files\\images\\appvet.png";
-		} else if (toolOS.toUpperCase().indexOf("NUX") > -1) {
-			dhsLogoPath = "/data/appvet_tools/android_mkef_files/images/dhs.jpg";
-			appvetLogoPath = "/data/appvet_tools/android_mkef_files/images/appvet.png";
+		return getSkeleton(reportStatus).getHtml(fileName, getDate(), report);
+	}
+
+	/**
+	 * Writes the HTML report to out as UTF-8 without building the whole
+	 * page in memory; only report, the details, is passed in whole. out is
+	 * flushed but not closed.
+	 */
+	public static void writeHtmlReport(OutputStream out, String fileName,
+			ToolStatus reportStatus, String report) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out,
+				StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+		getSkeleton(reportStatus).writeHtml(writer, fileName, getDate(),
+				report);
+		writer.flush();
+	}
+
+	/**
+	 * Writes the report as a PDF with the same layout as the HTML report.
+	 * Pages are written as they are laid out. out is flushed but not closed.
+	 */
+	public static void writePdfReport(OutputStream out, String fileName,
+			ToolStatus reportStatus, String report) throws IOException {
+		ReportSkeleton skeleton = getSkeleton(reportStatus);
+		PdfDocument pdf = new PdfDocument(skeleton.getPdf(),
+				new BufferedOutputStream(out, WRITE_BUFFER_SIZE));
+		PdfLines lines = new PdfLines(pdf, skeleton.getPdfY());
+		lines.addPre("File: \t\t" + fileName, null, null);
+		lines.addPre("Date: \t\t" + getDate() + "\n\n", null, null);
+		lines.addPre(skeleton.getPdfScoreLabel(), reportStatus.name(),
+				skeleton.getPdfScoreColor());
+		lines.skip(PDF_TEXT_SIZE);
+		lines.add(PdfDocument.HELVETICA_BOLD, 14f, "Details");
+		lines.skip(PDF_TEXT_SIZE / 2);
+		lines.addPre(report, null, null);
+		pdf.finish();
+	}
+
+	/**
+	 * Writes the report as JSON, encoded as UTF-8: the tool, the app and its
+	 * SHA-256, the date, verdict and score, each line of the details as a
+	 * finding, and the milliseconds after submission at which the job
+	 * entered each state. out is flushed but not closed.
+	 */
+	public static void writeJsonReport(OutputStream out, String appId,
+			String fileName, String sha256, double score,
+			ToolStatus reportStatus, String report, Map<String, Long> timings)
+			throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out,
+				StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+		writer.write("{\n  \"tool\": ");
+		writeJsonString(writer, Properties.toolName);
+		writer.write(",\n  \"toolVersion\": ");
+		writeJsonString(writer, Properties.toolVersion);
+		writer.write(",\n  \"appId\": ");
+		writeJsonString(writer, appId);
+		writer.write(",\n  \"file\": ");
+		writeJsonString(writer, fileName);
+		writer.write(",\n  \"sha256\": ");
+		writeJsonString(writer, sha256);
+		writer.write(",\n  \"date\": ");
+		writeJsonString(writer, getDate());
+		writer.write(",\n  \"verdict\": ");
+		writeJsonString(writer, reportStatus.name());
+		writer.write(",\n  \"score\": ");
+		writer.write(Double.toString(score));
+		writer.write(",\n  \"findings\": [");
+		String separator = "\n    ";
+		boolean findings = false;
+		int start = 0;
+		while (start < report.length()) {
+			int end = report.indexOf('\n', start);
+			if (end < 0) {
+				end = report.length();
+			}
+			String finding = report.substring(start, end).trim();
+			if (!finding.isEmpty()) {
+				writer.write(separator);
+				writeJsonString(writer, finding);
+				separator = ",\n    ";
+				findings = true;
+			}
+			start = end + 1;
 		}
-		
+		writer.write(findings ? "\n  ]" : "]");
+		writer.write(",\n  \"timings\": {");
+		separator = "\n    ";
+		for (Map.Entry<String, Long> timing : timings.entrySet()) {
+			writer.write(separator);
+			writeJsonString(writer, timing.getKey());
+			writer.write(": ");
+			writer.write(timing.getValue().toString());
+			separator = ",\n    ";
+		}
+		writer.write(timings.isEmpty() ? "}" : "\n  }");
+		writer.write("\n}\n");
+		writer.flush();
+	}
+
+	/**
+	 * Writes the report as XML, encoded as UTF-8, with the same content as
+	 * the JSON report. out is flushed but not closed.
+	 */
+	public static void writeXmlReport(OutputStream out, String appId,
+			String fileName, String sha256, double score,
+			ToolStatus reportStatus, String report, Map<String, Long> timings)
+			throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out,
+				StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+		writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		writer.write("<report tool=\"");
+		writeXmlText(writer, Properties.toolName);
+		writer.write("\" toolVersion=\"");
+		writeXmlText(writer, Properties.toolVersion);
+		writer.write("\">\n  <app id=\"");
+		writeXmlText(writer, appId);
+		writer.write("\" file=\"");
+		writeXmlText(writer, fileName);
+		writer.write("\" sha256=\"");
+		writeXmlText(writer, sha256);
+		writer.write("\"/>\n  <date>");
+		writeXmlText(writer, getDate());
+		writer.write("</date>\n  <verdict score=\"");
+		writer.write(Double.toString(score));
+		writer.write("\">");
+		writer.write(reportStatus.name());
+		writer.write("</verdict>\n  <findings>\n");
+		int start = 0;
+		while (start < report.length()) {
+			int end = report.indexOf('\n', start);
+			if (end < 0) {
+				end = report.length();
+			}
+			String finding = report.substring(start, end).trim();
+			if (!finding.isEmpty()) {
+				writer.write("    <finding>");
+				writeXmlText(writer, finding);
+				writer.write("</finding>\n");
+			}
+			start = end + 1;
+		}
+		writer.write("  </findings>\n  <timings>\n");
+		for (Map.Entry<String, Long> timing : timings.entrySet()) {
+			writer.write("    <timing state=\"");
+			writeXmlText(writer, timing.getKey());
+			writer.write("\">");
+			writer.write(timing.getValue().toString());
+			writer.write("</timing>\n");
+		}
+		writer.write("  </timings>\n</report>\n");
+		writer.flush();
+	}
+
+	/** Writes a JSON string literal; null is written as null. */
+	private static void writeJsonString(Writer writer, String value)
+			throws IOException {
+		if (value == null) {
+			writer.write("null");
+			return;
+		}
+		writer.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				writer.write('\\');
+				writer.write(c);
+			} else if (c == '\n') {
+				writer.write("\\n");
+			} else if (c == '\t') {
+				writer.write("\\t");
+			} else if (c == '\r') {
+				writer.write("\\r");
+			} else if (c < ' ') {
+				writer.write(String.format("\\u%04x", (int) c));
+			} else {
+				writer.write(c);
+			}
+		}
+		writer.write('"');
+	}
+
+	/**
+	 * Writes text escaped for XML content or attributes. Characters XML does
+	 * not allow are dropped.
+	 */
+	private static void writeXmlText(Writer writer, String value)
+			throws IOException {
+		if (value == null) {
+			return;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '&') {
+				writer.write("&amp;");
+			} else if (c == '<') {
+				writer.write("&lt;");
+			} else if (c == '>') {
+				writer.write("&gt;");
+			} else if (c == '"') {
+				writer.write("&quot;");
+			} else if (c < ' ' && c != '\t' && c != '\n' && c != '\r') {
+				continue;
+			} else {
+				writer.write(c);
+			}
+		}
+	}
+
+	/**
+	 * Renders the report skeletons of all statuses, so that the first
+	 * reports do not pay for it.
+	 */
+	public static void prepareSkeletons() {
+		for (ToolStatus status : ToolStatus.values()) {
+			getSkeleton(status);
+		}
+		log.debug("Rendered report skeletons");
+	}
+
+	/**
+	 * Returns the skeleton for reports of status, rendering it if this tool
+	 * version has none yet.
+	 */
+	private static ReportSkeleton getSkeleton(ToolStatus status) {
+		ReportSkeleton skeleton = skeletons.get(status.ordinal());
+		if (skeleton == null || !skeleton.isFor(status)) {
+			skeleton = buildSkeleton(status);
+			skeletons.set(status.ordinal(), skeleton);
+		}
+		return skeleton;
+	}
+
+	private static ReportSkeleton buildSkeleton(ToolStatus reportStatus) {
+		String[] html = new String[4];
 		StringBuffer htmlBuffer = new StringBuffer();
 		htmlBuffer.append("<HTML>\n");
 		htmlBuffer.append("<head>\n");
@@ -161,8 +408,8 @@ public class ReportUtil {
 		htmlBuffer.append("<table style=\"width: 100%; background:white;padding:0px;margin:0px;\">\n");
 		htmlBuffer.append("<tr>");
 		
-		htmlBuffer.append("<td style=\"width:50%;padding:0px;margin:0px;\" align=\"left\"><img src=\"" + dhsLogoPath + "\" alt=\"DHS logo\" style=\"height: 40px;\"></td>");
-		htmlBuffer.append("<td style=\"width:50%;padding:0px;margin:0px;\" align=\"right\"><img src=\"" + appvetLogoPath + "\" alt=\"AppVet logo\" style=\"height: 35px;\"></td>");
+		htmlBuffer.append("<td style=\"width:50%;padding:0px;margin:0px;\" align=\"left\"><img src=\"" + DHS_LOGO_PATH + "\" alt=\"DHS logo\" style=\"height: 40px;\"></td>");
+		htmlBuffer.append("<td style=\"width:50%;padding:0px;margin:0px;\" align=\"right\"><img src=\"" + APPVET_LOGO_PATH + "\" alt=\"AppVet logo\" style=\"height: 35px;\"></td>");
 
 		htmlBuffer.append("</tr>");
 		htmlBuffer.append("</td>\n");
@@ -172,12 +419,11 @@ public class ReportUtil {
 		// Content
 		htmlBuffer.append("<br><br><br><br><h3>" + Properties.toolName + " Report</h3>\n");
 		htmlBuffer.append("<pre>\n");
-		htmlBuffer.append("File: \t\t" + fileName + "\n");
-		final Date date = new Date();
-		final SimpleDateFormat format = new SimpleDateFormat(
-				"yyyy-MM-dd' 'HH:mm:ss.SSSZ");
-		final String currentDate = format.format(date);
-		htmlBuffer.append("Date: \t\t" + currentDate + "\n\n");
+		htmlBuffer.append("File: \t\t");
+		html[0] = htmlBuffer.toString();
+		html[1] = "\nDate: \t\t";
+		htmlBuffer.setLength(0);
+		htmlBuffer.append("\n\n");
 		if (reportStatus == ToolStatus.LOW) {
 			htmlBuffer.append("Score: \t\t<font color=\"green\">"
 					+ reportStatus.name() + "</font>\n");
@@ -192,9 +438,189 @@ public class ReportUtil {
 					+ reportStatus.name() + "</font>\n");
 		}
 		htmlBuffer.append("<h3>Details</h3>");
-		htmlBuffer.append(report);
-		htmlBuffer.append("</body>\n");
-		htmlBuffer.append("</HTML>\n");
-		return htmlBuffer.toString();
+		html[2] = htmlBuffer.toString();
+		html[3] = "</body>\n</HTML>\n";
+
+		String scoreLabel = "Score: \t\t";
+		Color scoreColor = Color.RED;
+		if (reportStatus == ToolStatus.LOW) {
+			scoreColor = new Color(0, 128, 0);
+		} else if (reportStatus == ToolStatus.MODERATE) {
+			scoreColor = Color.ORANGE;
+		} else if (reportStatus != ToolStatus.HIGH) {
+			scoreLabel = "Status: \t";
+		}
+		try {
+			PdfDocument pdf = new PdfDocument(PDF_WIDTH, PDF_HEIGHT);
+			float y = drawPdfBanner(pdf);
+			return new ReportSkeleton(reportStatus, html, pdf.toTemplate(),
+					y, scoreLabel, scoreColor);
+		} catch (IOException e) {
+			// Not thrown when writing to memory
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Draws the banner and title of PDF reports and returns where the
+	 * content after them starts.
+	 */
+	private static float drawPdfBanner(PdfDocument pdf) throws IOException {
+		float top = PDF_HEIGHT - PDF_MARGIN;
+
+		// AppVet banner, with logos 40 and 35 pixels high as in HTML
+		PdfDocument.Image dhsLogo = getPdfLogo(DHS_LOGO_PATH);
+		if (dhsLogo != null) {
+			float height = 30f;
+			pdf.drawImage(dhsLogo, PDF_MARGIN, top - height,
+					height * dhsLogo.getPixelWidth() / dhsLogo.getPixelHeight(),
+					height);
+		}
+		PdfDocument.Image appvetLogo = getPdfLogo(APPVET_LOGO_PATH);
+		if (appvetLogo != null) {
+			float height = 26.25f;
+			float width = height * appvetLogo.getPixelWidth()
+					/ appvetLogo.getPixelHeight();
+			pdf.drawImage(appvetLogo, PDF_WIDTH - PDF_MARGIN - width,
+					top - height, width, height);
+		}
+
+		// Title
+		PdfLines lines = new PdfLines(pdf, top - 30f - 60f);
+		lines.add(PdfDocument.HELVETICA_BOLD, 14f, Properties.toolName
+				+ " Report");
+		lines.skip(PDF_TEXT_SIZE);
+		return lines.getY();
+	}
+
+	/** Returns the current date as shown in reports. */
+	private static String getDate() {
+		return ZonedDateTime.now().format(REPORT_DATE);
+	}
+
+	private static String getLogoPath(String name) {
+		String toolOS = System.getProperty("os.name");
+		if (toolOS.toUpperCase().indexOf("WIN") > -1) {
+			return "C:\\appvet_tools\\android_mkef_files\\images\\" + name;
+		} else if (toolOS.toUpperCase().indexOf("NUX") > -1) {
+			return "/data/appvet_tools/android_mkef_files/images/" + name;
+		}
+		return null;
+	}
+
+	/** Returns a logo, read once per path, or null if it could not be read. */
+	private static PdfDocument.Image getPdfLogo(String path) {
+		if (path == null) {
+			return null;
+		}
+		synchronized (pdfLogos) {
+			if (!pdfLogos.containsKey(path)) {
+				PdfDocument.Image logo = PdfDocument.Image.read(path);
+				if (logo == null) {
+					log.warn("Could not read logo " + path);
+				}
+				pdfLogos.put(path, logo);
+			}
+			return pdfLogos.get(path);
+		}
+	}
+
+	/** Lays out lines of a PDF report top down, adding pages as needed. */
+	private static class PdfLines {
+		private final PdfDocument pdf;
+		private final StringBuilder line = new StringBuilder(128);
+		private float y;
+
+		PdfLines(PdfDocument pdf, float y) {
+			this.pdf = pdf;
+			this.y = y;
+		}
+
+		void skip(float points) {
+			y -= points;
+		}
+
+		float getY() {
+			return y;
+		}
+
+		/** Adds a line of proportional text. */
+		void add(String font, float size, String text) throws IOException {
+			float baseline = next(size);
+			pdf.drawText(font, size, null, PDF_MARGIN, baseline, text);
+		}
+
+		/**
+		 * Adds preformatted Courier text, as in an HTML pre element: tabs
+		 * stop every 8 columns and long lines wrap. The last line is
+		 * followed by suffix in the given color, if any. Lines are laid out
+		 * one at a time.
+		 */
+		void addPre(String text, String suffix, Color suffixColor)
+				throws IOException {
+			int columns = (int) ((PDF_WIDTH - 2 * PDF_MARGIN)
+					/ (PdfDocument.COURIER_ADVANCE * PDF_TEXT_SIZE));
+			int end = text.length();
+			if (end > 0 && text.charAt(end - 1) == '\n' && suffix == null) {
+				// Text ends with a newline
+				end--;
+			}
+			int lineStart = 0;
+			while (true) {
+				int lineEnd = text.indexOf('\n', lineStart);
+				boolean lastLine = lineEnd < 0 || lineEnd >= end;
+				if (lastLine) {
+					lineEnd = end;
+				}
+				expandTabs(text, lineStart, lineEnd);
+				int from = 0;
+				while (line.length() - from > columns) {
+					pdf.drawText(PdfDocument.COURIER, PDF_TEXT_SIZE, null,
+							PDF_MARGIN, next(PDF_TEXT_SIZE), line, from, from
+									+ columns);
+					from += columns;
+				}
+				float baseline = next(PDF_TEXT_SIZE);
+				pdf.drawText(PdfDocument.COURIER, PDF_TEXT_SIZE, null,
+						PDF_MARGIN, baseline, line, from, line.length());
+				if (lastLine) {
+					if (suffix != null) {
+						pdf.drawText(PdfDocument.COURIER, PDF_TEXT_SIZE,
+								suffixColor, PDF_MARGIN
+										+ (line.length() - from)
+										* PdfDocument.COURIER_ADVANCE
+										* PDF_TEXT_SIZE, baseline, suffix);
+					}
+					return;
+				}
+				lineStart = lineEnd + 1;
+			}
+		}
+
+		/** Returns the baseline of the next line, on a new page if needed. */
+		private float next(float size) throws IOException {
+			float leading = size * 1.2f;
+			if (y - leading < PDF_MARGIN) {
+				pdf.newPage();
+				y = PDF_HEIGHT - PDF_MARGIN;
+			}
+			y -= leading;
+			return y + leading - size;
+		}
+
+		/** Sets line to a line of text with its tabs expanded. */
+		private void expandTabs(String text, int start, int end) {
+			line.setLength(0);
+			for (int i = start; i < end; i++) {
+				char c = text.charAt(i);
+				if (c == '\t') {
+					do {
+						line.append(' ');
+					} while (line.length() % 8 != 0);
+				} else if (c != '\r') {
+					line.append(c);
+				}
+			}
+		}
 	}
 }
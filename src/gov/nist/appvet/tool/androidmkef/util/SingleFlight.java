@@ -0,0 +1,95 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls for the same key: the first caller runs the
+ * task, and callers arriving while it runs wait for and share its result.
+ * Nothing is cached once the task has finished. The number of shared results
+ * is counted in Metrics as singleFlight.name.shared.
+ */
+public class SingleFlight<V> {
+
+	private final String name;
+	private final ConcurrentHashMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+
+	public SingleFlight(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns the result of task, or of the task already running for key.
+	 * Tasks must not throw checked exceptions.
+	 */
+	public V run(String key, Callable<V> task) {
+		final FutureTask<V> future = new FutureTask<V>(task);
+		final FutureTask<V> running = inFlight.putIfAbsent(key, future);
+		if (running != null) {
+			Metrics.increment("singleFlight." + name + ".shared");
+			try {
+				return get(running);
+			} catch (InterruptedException e) {
+				// Stop waiting and do the work ourselves
+				Thread.currentThread().interrupt();
+				return call(task);
+			}
+		}
+		try {
+			future.run();
+			return get(future);
+		} catch (InterruptedException e) {
+			// Not reached; the future has already run on this thread
+			Thread.currentThread().interrupt();
+			return call(task);
+		} finally {
+			inFlight.remove(key, future);
+		}
+	}
+
+	private static <V> V get(FutureTask<V> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private static <V> V call(Callable<V> task) {
+		try {
+			return task.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef.util;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates the tool's threads. Threads that mostly wait on I/O can be virtual
+ * threads when the JDK supports them (Java 21 or later) and the tool is
+ * configured to use them; otherwise daemon platform threads are used. The
+ * number of live threads of each kind is kept in Metrics.
+ */
+public class Threads {
+
+	private static final Method ofVirtual;
+	private static final Method builderName;
+	private static final Method builderUnstarted;
+
+	static {
+		Method ofVirtualMethod = null;
+		Method nameMethod = null;
+		Method unstartedMethod = null;
+		try {
+			// Looked up reflectively so that the tool still runs on Java 8
+			final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+			nameMethod = builder.getMethod("name", String.class);
+			unstartedMethod = builder.getMethod("unstarted", Runnable.class);
+		} catch (ReflectiveOperationException e) {
+			ofVirtualMethod = null;
+		}
+		ofVirtual = ofVirtualMethod;
+		builderName = nameMethod;
+		builderUnstarted = unstartedMethod;
+	}
+
+	private Threads() {
+	}
+
+	/** Returns true if this JDK supports virtual threads. */
+	public static boolean isVirtualAvailable() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * Starts a thread running task. If virtual is set and this JDK supports
+	 * virtual threads, the thread is virtual; otherwise it is a daemon
+	 * platform thread.
+	 */
+	public static Thread start(String name, final Runnable task,
+			boolean virtual) {
+		String gauge = "threads.virtual.live";
+		Thread thread = null;
+		if (virtual && ofVirtual != null) {
+			thread = newVirtual(name, counted(gauge, task));
+		}
+		if (thread == null) {
+			gauge = "threads.platform.live";
+			thread = new Thread(counted(gauge, task), name);
+			thread.setDaemon(true);
+		}
+		Metrics.increment(gauge);
+		thread.start();
+		return thread;
+	}
+
+	private static Thread newVirtual(String name, Runnable task) {
+		try {
+			Object builder = ofVirtual.invoke(null);
+			builder = builderName.invoke(builder, name);
+			return (Thread) builderUnstarted.invoke(builder, task);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/** Wraps task so that the gauge is decremented when it ends. */
+	private static Runnable counted(final String gauge, final Runnable task) {
+		return new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					Metrics.add(gauge, -1);
+				}
+			}
+		};
+	}
+}
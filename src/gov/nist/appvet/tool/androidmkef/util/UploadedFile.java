@@ -0,0 +1,207 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef.util;
+
+import gov.nist.appvet.tool.androidmkef.Properties;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A file received in a multipart upload. Files up to a configurable size are
+ * kept in memory; larger ones are written once to a spill file as they are
+ * received. The SHA-256 and size are computed in the same pass.
+ */
+public class UploadedFile {
+
+	private static final Logger log = Properties.log;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private byte[] bytes = null;
+	private String filePath = null;
+	private long size = 0;
+	private String sha256 = null;
+
+	private UploadedFile() {
+	}
+
+	/**
+	 * Reads the stream to its end. Up to memoryLimit bytes are kept in
+	 * memory; if the stream is longer, everything is written to spillPath,
+	 * creating its parent directory if needed. If reading fails, the spill
+	 * file is deleted before the exception is thrown.
+	 */
+	public static UploadedFile receive(InputStream in, int memoryLimit,
+			String spillPath) throws IOException {
+		final UploadedFile upload = new UploadedFile();
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		byte[] memory = new byte[Math.min(Math.max(memoryLimit, 0), BUFFER_SIZE)];
+		int length = 0;
+		OutputStream out = null;
+		try {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, n);
+				upload.size += n;
+				if (out == null && length + n <= memoryLimit) {
+					if (length + n > memory.length) {
+						memory = Arrays.copyOf(memory, (int) Math.min(
+								memoryLimit,
+								Math.max(2L * memory.length, length + n)));
+					}
+					System.arraycopy(buffer, 0, memory, length, n);
+					length += n;
+					continue;
+				}
+				if (out == null) {
+					// Too large for memory; spill what we have so far
+					final File spillFile = new File(spillPath);
+					spillFile.getParentFile().mkdirs();
+					out = new FileOutputStream(spillFile);
+					out.write(memory, 0, length);
+					memory = null;
+					upload.filePath = spillPath;
+				}
+				out.write(buffer, 0, n);
+			}
+			if (out != null) {
+				out.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			// Nobody gets the upload, so nobody else could delete its file
+			if (out != null) {
+				discard(out, spillPath);
+			}
+			throw e;
+		} finally {
+			in.close();
+		}
+		if (upload.filePath == null) {
+			upload.bytes = length == memory.length ? memory : Arrays.copyOf(
+					memory, length);
+		} else {
+			log.debug("Saved " + spillPath);
+		}
+		upload.sha256 = FileUtil.toHex(digest.digest());
+		return upload;
+	}
+
+	/** Closes and deletes a spill file that was not fully received. */
+	private static void discard(OutputStream out, String spillPath) {
+		try {
+			out.close();
+		} catch (IOException e) {
+			log.error(e.toString());
+		}
+		if (!new File(spillPath).delete()) {
+			log.error("Could not delete partial upload " + spillPath);
+		} else {
+			log.debug("Deleted partial upload " + spillPath);
+		}
+	}
+
+	/**
+	 * Returns an upload for a file that is already on disk, such as the app
+	 * of a job recovered from the journal.
+	 */
+	public static UploadedFile fromFile(String filePath, String sha256) {
+		final UploadedFile upload = new UploadedFile();
+		upload.filePath = filePath;
+		upload.size = new File(filePath).length();
+		upload.sha256 = sha256;
+		return upload;
+	}
+
+	public boolean isInMemory() {
+		return bytes != null;
+	}
+
+	/** Returns the content of an in-memory upload. */
+	public ByteBuffer getBytes() {
+		return ByteBuffer.wrap(bytes);
+	}
+
+	/** Returns the file holding the upload, or null if it is in memory. */
+	public String getFilePath() {
+		return filePath;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public String getSha256() {
+		return sha256;
+	}
+
+	/**
+	 * Stores the upload at destPath: a spilled file is renamed, an in-memory
+	 * upload is written out and also stays available in memory.
+	 */
+	public boolean saveTo(String destPath) {
+		new File(destPath).getParentFile().mkdirs();
+		if (bytes == null) {
+			if (!FileUtil.moveFile(filePath, destPath)) {
+				return false;
+			}
+			filePath = destPath;
+			return true;
+		}
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(destPath);
+			out.write(bytes);
+			filePath = destPath;
+			log.debug("Saved " + destPath);
+			return true;
+		} catch (IOException e) {
+			log.error(e.toString());
+			return false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					log.error(e.toString());
+				}
+			}
+		}
+	}
+
+	/** Deletes the file holding the upload, if any. */
+	public void delete() {
+		if (filePath != null) {
+			new File(filePath).delete();
+		}
+	}
+}
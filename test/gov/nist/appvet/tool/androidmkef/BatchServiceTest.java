@@ -0,0 +1,168 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import gov.nist.appvet.tool.androidmkef.util.Protocol;
+import gov.nist.appvet.tool.androidmkef.util.ReportFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks that a batch upload that breaks off part-way still answers 202 for
+ * the apps already accepted, and leaves no partial upload behind.
+ * <p>
+ * Needs ANDROID_MKEF_FILES_HOME to point to a copy of
+ * deploy/android_mkef_files; skipped otherwise.
+ */
+public class BatchServiceTest {
+
+	private HttpServer appvet;
+	private String protocol;
+	private String reportFormat;
+	private boolean keepApps;
+	private int inMemoryMaxSize;
+	private String appvetUrl;
+
+	@Before
+	public void configure() throws IOException {
+		assumeNotNull(System.getenv("ANDROID_MKEF_FILES_HOME"));
+		appvet = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		appvet.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		appvet.start();
+		protocol = Properties.protocol;
+		reportFormat = Properties.reportFormat;
+		keepApps = Properties.keepApps;
+		inMemoryMaxSize = Properties.inMemoryMaxSize;
+		appvetUrl = Properties.appvetUrl;
+		Properties.protocol = Protocol.ASYNCHRONOUS.name();
+		Properties.reportFormat = ReportFormat.JSON.name();
+		Properties.keepApps = false;
+		Properties.inMemoryMaxSize = 1024;
+		Properties.appvetUrl = "http://127.0.0.1:"
+				+ appvet.getAddress().getPort() + "/appvet/AppVetServlet";
+	}
+
+	@After
+	public void restore() {
+		if (appvet == null) {
+			return;
+		}
+		appvet.stop(0);
+		Properties.protocol = protocol;
+		Properties.reportFormat = reportFormat;
+		Properties.keepApps = keepApps;
+		Properties.inMemoryMaxSize = inMemoryMaxSize;
+		Properties.appvetUrl = appvetUrl;
+	}
+
+	@Test(timeout = 60000)
+	public void truncatedBatchKeepsAcceptedApps() throws Exception {
+		final String run = UUID.randomUUID().toString().substring(0, 8);
+		final String accepted = "batch-" + run + "-1";
+		final String truncated = "batch-" + run + "-2";
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(TestHttp.field("appid", accepted));
+		body.write(TestHttp.file("one.apk", apk(accepted, 16)));
+		body.write(TestHttp.field("appid", truncated));
+		// Large enough to spill to disk before the body breaks off
+		final byte[] part = TestHttp.file("two.apk", apk(truncated, 64 * 1024));
+		body.write(part, 0, part.length / 2);
+
+		final TestHttp.Response response = new TestHttp.Response();
+		new BatchService().doPost(TestHttp.post(body.toByteArray()),
+				response.get());
+		final String manifest = response.getBody();
+		assertEquals(manifest, HttpServletResponse.SC_ACCEPTED,
+				response.getStatus());
+		assertTrue(manifest, manifest.contains("ACCEPTED\t" + accepted + "\n"));
+		assertTrue(manifest, manifest.contains("REJECTED\t-\t"));
+		assertFalse(new File(Properties.TEMP_DIR, truncated).exists());
+		awaitFinal(accepted);
+	}
+
+	@Test(timeout = 60000)
+	public void truncatedBatchWithoutAcceptedAppsFails() throws Exception {
+		final String truncated = "batch-"
+				+ UUID.randomUUID().toString().substring(0, 8);
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(TestHttp.field("appid", truncated));
+		final byte[] part = TestHttp.file("app.apk", apk(truncated, 64 * 1024));
+		body.write(part, 0, part.length / 2);
+
+		final TestHttp.Response response = new TestHttp.Response();
+		new BatchService().doPost(TestHttp.post(body.toByteArray()),
+				response.get());
+		assertTrue(response.getBody(),
+				response.getStatus() == HttpServletResponse.SC_BAD_REQUEST
+						|| response.getStatus() == HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		assertFalse(new File(Properties.TEMP_DIR, truncated).exists());
+	}
+
+	private static JobStatus awaitFinal(String appId)
+			throws InterruptedException {
+		while (true) {
+			final JobStatus status = JobIndex.getInstance().getByAppId(appId);
+			if (status != null && status.getState().isFinal()) {
+				return status;
+			}
+			Thread.sleep(20);
+		}
+	}
+
+	/** Returns a STORED archive holding size bytes named after appId. */
+	private static byte[] apk(String appId, int size) throws IOException {
+		final byte[] content = new byte[size];
+		Arrays.fill(content, (byte) appId.hashCode());
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.setLevel(0);
+		zip.putNextEntry(new ZipEntry("classes.dex"));
+		zip.write(content);
+		zip.close();
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,92 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeNotNull;
+
+import gov.nist.appvet.tool.androidmkef.util.UploadedFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the job index drops the oldest finished jobs once it is full,
+ * and never drops jobs still in progress.
+ * <p>
+ * Needs ANDROID_MKEF_FILES_HOME to point to a copy of
+ * deploy/android_mkef_files; skipped otherwise.
+ */
+public class JobIndexTest {
+
+	private static final long HOUR = 3600 * 1000L;
+
+	@Before
+	public void configure() {
+		assumeNotNull(System.getenv("ANDROID_MKEF_FILES_HOME"));
+	}
+
+	@Test
+	public void oldestFinishedJobsAreDroppedFirst() {
+		final JobIndex index = new JobIndex(HOUR, 3);
+		final Job[] jobs = new Job[5];
+		for (int i = 0; i < jobs.length; i++) {
+			jobs[i] = job(i);
+		}
+		index.update(jobs[0], JobStatus.State.QUEUED);
+		for (int i = 1; i < 4; i++) {
+			index.update(jobs[i], JobStatus.State.QUEUED);
+			index.update(jobs[i], JobStatus.State.DELIVERED);
+		}
+		// Job 0 finishes last, so it is dropped last
+		index.update(jobs[0], JobStatus.State.FAILED);
+		index.update(jobs[4], JobStatus.State.QUEUED);
+
+		// Jobs 3 and 4 each pushed the index past 3 entries
+		for (int i : new int[] { 1, 2 }) {
+			assertNull(index.getByAppId(jobs[i].getAppId()));
+			assertNull(index.getBySha256(jobs[i].getSha256()));
+		}
+		for (int i : new int[] { 0, 3, 4 }) {
+			assertNotNull(index.getByAppId(jobs[i].getAppId()));
+		}
+		assertEquals(JobStatus.State.FAILED,
+				index.getBySha256(jobs[0].getSha256()).getState());
+	}
+
+	@Test
+	public void jobsInProgressAreKept() {
+		final JobIndex index = new JobIndex(HOUR, 2);
+		for (int i = 0; i < 4; i++) {
+			index.update(job(i), JobStatus.State.QUEUED);
+		}
+		for (int i = 0; i < 4; i++) {
+			assertNotNull(index.getByAppId(job(i).getAppId()));
+		}
+	}
+
+	private static Job job(int i) {
+		final String sha256 = String.format("%064x", Integer.valueOf(i + 1));
+		return new Job("index-" + i, "app.apk", UploadedFile.fromFile(
+				"/nonexistent/app.apk", sha256), null);
+	}
+}
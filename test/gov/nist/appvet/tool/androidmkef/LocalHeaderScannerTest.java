@@ -0,0 +1,121 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Scans crafted archives that once made the local header walk go backwards,
+ * and checks how differing local headers are reported.
+ */
+public class LocalHeaderScannerTest {
+
+	/**
+	 * One STORED entry, classes.dex, whose central directory record keeps its
+	 * compressed size in a ZIP64 extra field set to -41: minus the offset of
+	 * its data, which sent the walk back to offset 0.
+	 */
+	private static final String NEGATIVE_ZIP64_SIZE = "zip64-negative-size.apk";
+
+	@Test(timeout = 10000)
+	public void negativeZip64SizeIsAnErrorInMemory() throws IOException {
+		final ByteBuffer apk = ByteBuffer.wrap(read(NEGATIVE_ZIP64_SIZE));
+		assertError(new MKEFScanner(apk.duplicate(), 1, false).scan(true));
+		assertError(new MKEFScanner(apk.duplicate(), 1, false).scan(false));
+		assertError(new MKEFScanner(apk.duplicate(), 1, true).scan(false));
+	}
+
+	@Test(timeout = 10000)
+	public void negativeZip64SizeIsAnErrorOnDisk() throws IOException {
+		final File apk = File.createTempFile("mkef", ".apk");
+		try {
+			Files.copy(getClass().getResourceAsStream(NEGATIVE_ZIP64_SIZE),
+					apk.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			for (boolean fastVerdict : new boolean[] { true, false }) {
+				final MKEFScanner scanner = new MKEFScanner(apk.getPath(), 1,
+						false);
+				try {
+					assertError(scanner.scan(fastVerdict));
+				} finally {
+					scanner.close();
+				}
+			}
+		} finally {
+			apk.delete();
+		}
+	}
+
+	@Test
+	public void differingLocalNameIsReported() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.putNextEntry(new ZipEntry("a.txt"));
+		zip.write(1);
+		zip.close();
+		final byte[] apk = bytes.toByteArray();
+		// The name of the first local header follows its 30 fixed bytes
+		apk[30] = 'b';
+		final ScanResult result = new MKEFScanner(ByteBuffer.wrap(apk), 1,
+				false).scan(false);
+		assertFalse(result.isError());
+		assertTrue(result.hasExtraField());
+		assertEquals("Local name differs for entry a.txt",
+				result.getExtraFieldDetail());
+	}
+
+	private static void assertError(ScanResult result) {
+		assertTrue(result.isError());
+		assertNotNull(result.getError());
+		assertFalse(result.hasMasterKey());
+		assertFalse(result.hasExtraField());
+	}
+
+	private byte[] read(String name) throws IOException {
+		final InputStream in = getClass().getResourceAsStream(name);
+		try {
+			final byte[] buffer = new byte[4096];
+			int length = 0;
+			int n;
+			while ((n = in.read(buffer, length, buffer.length - length)) > 0) {
+				length += n;
+			}
+			final byte[] bytes = new byte[length];
+			System.arraycopy(buffer, 0, bytes, 0, length);
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Checks that the scan budget is enforced even when no entry is inflated,
+ * and that a scanned file is no longer mapped once the scanner is closed.
+ */
+public class MKEFScannerTest {
+
+	@Test
+	public void timeLimitStopsHeaderWalk() throws Exception {
+		final ByteBuffer apk = ByteBuffer.wrap(zip(1000));
+		final ScanBudget budget = new ScanBudget(0, 0, 0, 1);
+		Thread.sleep(5);
+		for (boolean fastVerdict : new boolean[] { true, false }) {
+			final ScanResult result = new MKEFScanner(apk.duplicate(), 1,
+					false).scan(fastVerdict, budget);
+			assertTrue(result.isError());
+			assertTrue(result.getError().contains("1 ms"));
+			assertFalse(result.isVulnerable());
+		}
+	}
+
+	@Test
+	public void unlimitedBudgetFindsNothing() throws IOException {
+		final ScanResult result = new MKEFScanner(ByteBuffer.wrap(zip(1000)),
+				1, false).scan(false, ScanBudget.unlimited());
+		assertFalse(result.isError());
+		assertFalse(result.isVulnerable());
+	}
+
+	@Test
+	public void closeUnmapsFile() throws IOException {
+		final File maps = new File("/proc/self/maps");
+		assumeTrue(maps.canRead());
+		final File apk = File.createTempFile("mapped", ".apk");
+		try {
+			Files.write(apk.toPath(), zip(100));
+			final MKEFScanner scanner = new MKEFScanner(apk.getPath(), 1,
+					true);
+			assertFalse(scanner.scan(false).isVulnerable());
+			assertTrue(isMapped(apk));
+			scanner.close();
+			assertFalse(isMapped(apk));
+		} finally {
+			apk.delete();
+		}
+	}
+
+	private static boolean isMapped(File file) throws IOException {
+		return new String(Files.readAllBytes(Paths.get("/proc/self/maps")),
+				StandardCharsets.UTF_8).contains(file.getCanonicalPath());
+	}
+
+	/** Returns a well-formed archive of the given number of small entries. */
+	private static byte[] zip(int entries) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ZipOutputStream zip = new ZipOutputStream(bytes);
+		for (int i = 0; i < entries; i++) {
+			zip.putNextEntry(new ZipEntry("res/raw/entry" + i + ".txt"));
+			zip.write(("entry " + i).getBytes("UTF-8"));
+			zip.closeEntry();
+		}
+		zip.close();
+		return bytes.toByteArray();
+	}
+}
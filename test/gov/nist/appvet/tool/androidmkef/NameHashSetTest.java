@@ -0,0 +1,60 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Checks that duplicate names are found whatever seed each set draws.
+ */
+public class NameHashSetTest {
+
+	@Test
+	public void findsDuplicatesAcrossResizes() {
+		for (int run = 0; run < 20; run++) {
+			final NameHashSet set = new NameHashSet(4);
+			for (int i = 0; i < 1000; i++) {
+				final byte[] name = name(i);
+				assertTrue(set.add(name, 0, name.length));
+			}
+			assertEquals(1000, set.size());
+			for (int i = 0; i < 1000; i++) {
+				// Same bytes at another offset of a larger buffer
+				final byte[] padded = ("xx" + new String(name(i),
+						StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+				assertTrue(set.contains(padded, 2, padded.length - 2));
+				assertFalse(set.add(padded, 2, padded.length - 2));
+			}
+			final byte[] other = name(1000);
+			assertFalse(set.contains(other, 0, other.length));
+			assertEquals(1000, set.size());
+		}
+	}
+
+	private static byte[] name(int i) {
+		return ("res/raw/entry" + i + ".txt").getBytes(StandardCharsets.UTF_8);
+	}
+}
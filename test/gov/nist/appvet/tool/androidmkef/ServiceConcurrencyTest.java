@@ -0,0 +1,258 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeNotNull;
+
+import gov.nist.appvet.tool.androidmkef.util.Protocol;
+import gov.nist.appvet.tool.androidmkef.util.ReportFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Submits many apps to one Service at once and checks that no submission
+ * sees another's paths, report or verdict. Some apps are clean and some
+ * have a duplicate entry (MasterKey); some are scanned in memory and some
+ * spill to disk; some share their bytes with another submission, so that
+ * they also share its scan.
+ * <p>
+ * Needs ANDROID_MKEF_FILES_HOME to point to a copy of
+ * deploy/android_mkef_files; skipped otherwise.
+ */
+public class ServiceConcurrencyTest {
+
+	private static final int THREADS = 16;
+	private static final int SUBMISSIONS = 400;
+	private static final int IN_MEMORY_MAX_SIZE = 4096;
+
+	private final List<String> appIds = new ArrayList<String>();
+	private String protocol;
+	private String reportFormat;
+	private boolean keepApps;
+	private int inMemoryMaxSize;
+
+	@Before
+	public void configure() {
+		assumeNotNull(System.getenv("ANDROID_MKEF_FILES_HOME"));
+		protocol = Properties.protocol;
+		reportFormat = Properties.reportFormat;
+		keepApps = Properties.keepApps;
+		inMemoryMaxSize = Properties.inMemoryMaxSize;
+		Properties.protocol = Protocol.SYNCHRONOUS.name();
+		Properties.reportFormat = ReportFormat.JSON.name();
+		Properties.keepApps = true;
+		Properties.inMemoryMaxSize = IN_MEMORY_MAX_SIZE;
+	}
+
+	@After
+	public void restore() throws IOException {
+		if (protocol == null) {
+			return;
+		}
+		Properties.protocol = protocol;
+		Properties.reportFormat = reportFormat;
+		Properties.keepApps = keepApps;
+		Properties.inMemoryMaxSize = inMemoryMaxSize;
+		for (String appId : appIds) {
+			FileUtils.deleteDirectory(new File(Properties.TEMP_DIR, appId));
+		}
+	}
+
+	@Test(timeout = 120000)
+	public void concurrentSubmissionsStayApart() throws Exception {
+		final Service service = new Service();
+		service.init();
+		final String run = UUID.randomUUID().toString().substring(0, 8);
+		final List<Submission> submissions = new ArrayList<Submission>();
+		byte[] previous = null;
+		for (int i = 0; i < SUBMISSIONS; i++) {
+			final boolean masterKey = i % 3 == 0;
+			// Every fifth app repeats the bytes of the one before it
+			final byte[] apk = i % 5 == 4 ? previous : apk(run + "-" + i,
+					masterKey, i % 2 == 0 ? 0 : 2 * IN_MEMORY_MAX_SIZE);
+			final boolean expectMasterKey = i % 5 == 4 ? (i - 1) % 3 == 0
+					: masterKey;
+			final Submission submission = new Submission("stress-" + run + "-"
+					+ i, "app" + i + ".apk", "submitter" + (i % 4), apk,
+					expectMasterKey);
+			submissions.add(submission);
+			appIds.add(submission.appId);
+			previous = apk;
+		}
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		final List<Future<TestHttp.Response>> responses = new ArrayList<Future<TestHttp.Response>>();
+		try {
+			for (final Submission submission : submissions) {
+				responses.add(pool.submit(new Callable<TestHttp.Response>() {
+					public TestHttp.Response call() throws Exception {
+						final TestHttp.Response response = new TestHttp.Response();
+						start.await();
+						service.doPost(submission.request(), response.get());
+						return response;
+					}
+				}));
+			}
+			start.countDown();
+			for (int i = 0; i < submissions.size(); i++) {
+				check(submissions.get(i), responses.get(i).get());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** Checks that a response and the files kept on disk are the job's own. */
+	private static void check(Submission submission,
+			TestHttp.Response response) throws IOException {
+		final String body = response.getBody();
+		final String expected = submission.masterKey ? "HIGH" : "LOW";
+		assertEquals(body, 200, response.getStatus());
+		assertEquals(expected, response.getHeader("toolrisk"));
+		assertEquals(submission.appId, field(body, "appId"));
+		assertEquals(submission.fileName, field(body, "file"));
+		assertEquals(submission.sha256, field(body, "sha256"));
+		assertEquals(expected, field(body, "verdict"));
+
+		final File app = new File(Properties.TEMP_DIR + "/" + submission.appId,
+				submission.fileName);
+		assertArrayEquals(submission.apk, Files.readAllBytes(app.toPath()));
+		final JobStatus status = JobIndex.getInstance().getByAppId(
+				submission.appId);
+		assertNotNull(status);
+		assertEquals(submission.sha256, status.getSha256());
+		assertEquals(JobStatus.State.DELIVERED, status.getState());
+	}
+
+	private static String field(String json, String name) {
+		final Matcher matcher = Pattern.compile(
+				"\"" + name + "\": \"([^\"]*)\"").matcher(json);
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	/**
+	 * Returns an app unique to seed, padded by a STORED entry of the given
+	 * size. If masterKey is set, two of its entries have the same name.
+	 */
+	private static byte[] apk(String seed, boolean masterKey, int padding)
+			throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+		zip.write(("<manifest package=\"" + seed + "\"/>").getBytes("UTF-8"));
+		zip.putNextEntry(new ZipEntry("classes.dex"));
+		zip.write(("dex " + seed).getBytes("UTF-8"));
+		zip.putNextEntry(new ZipEntry("classes.dey"));
+		zip.write(("also " + seed).getBytes("UTF-8"));
+		if (padding > 0) {
+			final byte[] data = new byte[padding];
+			final ZipEntry entry = new ZipEntry("res/raw/padding");
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(padding);
+			final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+			crc.update(data);
+			entry.setCrc(crc.getValue());
+			zip.putNextEntry(entry);
+			zip.write(data);
+		}
+		zip.close();
+		final byte[] apk = bytes.toByteArray();
+		if (masterKey) {
+			// Rename classes.dey to classes.dex in its local and central
+			// headers; names are not covered by the CRCs
+			replace(apk, "classes.dey".getBytes("UTF-8"),
+					"classes.dex".getBytes("UTF-8"));
+		}
+		return apk;
+	}
+
+	private static void replace(byte[] bytes, byte[] from, byte[] to) {
+		for (int i = 0; i + from.length <= bytes.length; i++) {
+			boolean match = true;
+			for (int j = 0; j < from.length && match; j++) {
+				match = bytes[i + j] == from[j];
+			}
+			if (match) {
+				System.arraycopy(to, 0, bytes, i, to.length);
+			}
+		}
+	}
+
+	private static final class Submission {
+
+		final String appId;
+		final String fileName;
+		final String submitter;
+		final byte[] apk;
+		final boolean masterKey;
+		final String sha256;
+
+		Submission(String appId, String fileName, String submitter,
+				byte[] apk, boolean masterKey) throws Exception {
+			this.appId = appId;
+			this.fileName = fileName;
+			this.submitter = submitter;
+			this.apk = apk;
+			this.masterKey = masterKey;
+			final StringBuilder hex = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-256").digest(apk)) {
+				hex.append(String.format("%02x", b & 0xff));
+			}
+			this.sha256 = hex.toString();
+		}
+
+		javax.servlet.http.HttpServletRequest request() throws IOException {
+			final Map<String, String> fields = new LinkedHashMap<String, String>();
+			fields.put("appid", appId);
+			fields.put("username", submitter);
+			final Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+			files.put(fileName, apk);
+			files.put("icon.png", new byte[] { (byte) 0x89, 'P', 'N', 'G' });
+			return TestHttp.post(fields, files);
+		}
+	}
+}
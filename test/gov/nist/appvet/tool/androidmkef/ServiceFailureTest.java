@@ -0,0 +1,192 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import gov.nist.appvet.tool.androidmkef.util.Protocol;
+import gov.nist.appvet.tool.androidmkef.util.ReportFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks that an asynchronous job whose stage fails unexpectedly still
+ * finishes: it ends FAILED with an ERROR verdict, AppVet receives an ERROR
+ * report, its files are deleted and the worker lives on.
+ * <p>
+ * Needs ANDROID_MKEF_FILES_HOME to point to a copy of
+ * deploy/android_mkef_files; skipped otherwise.
+ */
+public class ServiceFailureTest {
+
+	/** Bodies of the requests AppVet received. */
+	private final List<String> reports = new CopyOnWriteArrayList<String>();
+	private HttpServer appvet;
+	private String protocol;
+	private String reportFormat;
+	private boolean keepApps;
+	private String appvetUrl;
+
+	/** Service whose scans throw what the app ID asks for. */
+	private static class FailingService extends Service {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public double analyzeMkef(Job job, StringBuffer output) {
+			if (job.getAppId().endsWith("-error")) {
+				throw new AssertionError("injected error");
+			}
+			throw new IllegalStateException("injected exception");
+		}
+	}
+
+	@Before
+	public void configure() throws IOException {
+		assumeNotNull(System.getenv("ANDROID_MKEF_FILES_HOME"));
+		appvet = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		appvet.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				reports.add(read(exchange.getRequestBody()));
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		appvet.start();
+		protocol = Properties.protocol;
+		reportFormat = Properties.reportFormat;
+		keepApps = Properties.keepApps;
+		appvetUrl = Properties.appvetUrl;
+		Properties.protocol = Protocol.ASYNCHRONOUS.name();
+		Properties.reportFormat = ReportFormat.JSON.name();
+		Properties.keepApps = false;
+		Properties.appvetUrl = "http://127.0.0.1:"
+				+ appvet.getAddress().getPort() + "/appvet/AppVetServlet";
+	}
+
+	@After
+	public void restore() {
+		if (appvet == null) {
+			return;
+		}
+		appvet.stop(0);
+		Properties.protocol = protocol;
+		Properties.reportFormat = reportFormat;
+		Properties.keepApps = keepApps;
+		Properties.appvetUrl = appvetUrl;
+	}
+
+	@Test(timeout = 60000)
+	public void failedStageFinishesJob() throws Exception {
+		final Service service = new FailingService();
+		final String run = UUID.randomUUID().toString().substring(0, 8);
+		// An error first: the worker must survive it to run the second job
+		final String[] appIds = { "failure-" + run + "-error",
+				"failure-" + run + "-exception" };
+		for (String appId : appIds) {
+			final TestHttp.Response response = new TestHttp.Response();
+			service.doPost(request(appId), response.get());
+			assertEquals(response.getBody(), HttpServletResponse.SC_ACCEPTED,
+					response.getStatus());
+		}
+		for (String appId : appIds) {
+			final JobStatus status = awaitFinal(appId);
+			final String[] line = status.toLine().split("\t");
+			assertEquals(JobStatus.State.FAILED, status.getState());
+			assertEquals("-1.0", line[2]);
+			assertEquals("ERROR", line[3]);
+			assertFalse(new File(Properties.TEMP_DIR, appId).exists());
+			assertNotNull(report(appId));
+			assertTrue(report(appId).contains("ERROR"));
+			assertTrue(report(appId).contains("SUBMIT_REPORT"));
+		}
+	}
+
+	private static JobStatus awaitFinal(String appId)
+			throws InterruptedException {
+		while (true) {
+			final JobStatus status = JobIndex.getInstance().getByAppId(appId);
+			if (status != null && status.getState().isFinal()) {
+				return status;
+			}
+			Thread.sleep(20);
+		}
+	}
+
+	/** Returns the body of the report AppVet received for appId, if any. */
+	private String report(String appId) {
+		for (String report : reports) {
+			if (report.contains(appId)) {
+				return report;
+			}
+		}
+		return null;
+	}
+
+	private static javax.servlet.http.HttpServletRequest request(String appId)
+			throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.putNextEntry(new ZipEntry("classes.dex"));
+		zip.write(appId.getBytes("UTF-8"));
+		zip.close();
+		final Map<String, String> fields = new LinkedHashMap<String, String>();
+		fields.put("appid", appId);
+		final Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+		files.put("app.apk", bytes.toByteArray());
+		files.put("icon.png", new byte[] { (byte) 0x89, 'P', 'N', 'G' });
+		return TestHttp.post(fields, files);
+	}
+
+	private static String read(InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			out.write(buffer, 0, n);
+		}
+		return out.toString("UTF-8");
+	}
+}
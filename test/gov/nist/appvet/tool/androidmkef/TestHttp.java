@@ -0,0 +1,244 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal in-memory HTTP requests and responses for driving servlets in
+ * tests without a container.
+ */
+final class TestHttp {
+
+	private static final String BOUNDARY = "----mkef-test-boundary";
+
+	private TestHttp() {
+	}
+
+	/**
+	 * Returns a multipart POST as AppVet sends it: the form fields, then one
+	 * file part per entry of files, keyed by file name.
+	 */
+	static HttpServletRequest post(Map<String, String> fields,
+			Map<String, byte[]> files) throws IOException {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			body.write(field(field.getKey(), field.getValue()));
+		}
+		for (Map.Entry<String, byte[]> file : files.entrySet()) {
+			body.write(file(file.getKey(), file.getValue()));
+		}
+		body.write(end());
+		return post(body.toByteArray());
+	}
+
+	/** Returns a multipart POST of a body built from the parts below. */
+	static HttpServletRequest post(byte[] body) {
+		final Map<String, Object> values = new HashMap<String, Object>();
+		values.put("getMethod", "POST");
+		values.put("getContentType", "multipart/form-data; boundary="
+				+ BOUNDARY);
+		values.put("getContentLength", Integer.valueOf(body.length));
+		values.put("getContentLengthLong", Long.valueOf(body.length));
+		values.put("getRemoteAddr", "127.0.0.1");
+		values.put("getInputStream", new Input(body));
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				TestHttp.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, stub(values));
+	}
+
+	/** Returns a form field part of a multipart body. */
+	static byte[] field(String name, String value) throws IOException {
+		return bytes("--" + BOUNDARY + "\r\nContent-Disposition: form-data; "
+				+ "name=\"" + name + "\"\r\n\r\n" + value + "\r\n");
+	}
+
+	/** Returns a file part of a multipart body. */
+	static byte[] file(String fileName, byte[] content) throws IOException {
+		final ByteArrayOutputStream part = new ByteArrayOutputStream();
+		part.write(bytes("--" + BOUNDARY + "\r\nContent-Disposition: "
+				+ "form-data; name=\"file\"; filename=\"" + fileName
+				+ "\"\r\nContent-Type: application/octet-stream\r\n\r\n"));
+		part.write(content);
+		part.write(bytes("\r\n"));
+		return part.toByteArray();
+	}
+
+	/** Returns the closing boundary of a multipart body. */
+	static byte[] end() throws IOException {
+		return bytes("--" + BOUNDARY + "--\r\n");
+	}
+
+	/** Records what a servlet sends in a response. */
+	static final class Response {
+
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private final StringWriter text = new StringWriter();
+		private final Map<String, String> headers = new HashMap<String, String>();
+		private int status = HttpServletResponse.SC_OK;
+		private String contentType = null;
+		private final HttpServletResponse response;
+
+		Response() {
+			final Map<String, Object> values = new HashMap<String, Object>();
+			values.put("getOutputStream", new Output(body));
+			values.put("getWriter", new PrintWriter(text));
+			final InvocationHandler stub = stub(values);
+			response = (HttpServletResponse) Proxy.newProxyInstance(
+					TestHttp.class.getClassLoader(),
+					new Class<?>[] { HttpServletResponse.class },
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method method,
+								Object[] args) throws Throwable {
+							final String name = method.getName();
+							if (name.equals("setStatus")) {
+								status = ((Integer) args[0]).intValue();
+							} else if (name.equals("setContentType")) {
+								contentType = (String) args[0];
+							} else if (name.equals("setHeader")) {
+								headers.put((String) args[0], (String) args[1]);
+							}
+							return stub.invoke(proxy, method, args);
+						}
+					});
+		}
+
+		HttpServletResponse get() {
+			return response;
+		}
+
+		int getStatus() {
+			return status;
+		}
+
+		String getContentType() {
+			return contentType;
+		}
+
+		String getHeader(String name) {
+			return headers.get(name);
+		}
+
+		/** Returns the body, whether written as bytes or as text. */
+		String getBody() throws IOException {
+			return body.toString("UTF-8") + text.toString();
+		}
+	}
+
+	/**
+	 * Returns a handler that answers getters from values and everything else
+	 * with the default value of its return type.
+	 */
+	private static InvocationHandler stub(final Map<String, Object> values) {
+		return new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				final String name = method.getName();
+				if (values.containsKey(name)
+						&& (args == null || args.length == 0)) {
+					return values.get(name);
+				}
+				if (name.equals("toString")) {
+					return "TestHttp stub";
+				}
+				final Class<?> type = method.getReturnType();
+				if (type == boolean.class) {
+					return Boolean.FALSE;
+				} else if (type == int.class) {
+					return Integer.valueOf(0);
+				} else if (type == long.class) {
+					return Long.valueOf(0);
+				}
+				return null;
+			}
+		};
+	}
+
+	private static byte[] bytes(String text) throws IOException {
+		return text.getBytes("UTF-8");
+	}
+
+	private static final class Input extends ServletInputStream {
+
+		private final ByteArrayInputStream in;
+
+		Input(byte[] bytes) {
+			in = new ByteArrayInputStream(bytes);
+		}
+
+		public int read() {
+			return in.read();
+		}
+
+		public int read(byte[] b, int off, int len) {
+			return in.read(b, off, len);
+		}
+
+		public boolean isFinished() {
+			return in.available() == 0;
+		}
+
+		public boolean isReady() {
+			return true;
+		}
+
+		public void setReadListener(ReadListener listener) {
+		}
+	}
+
+	private static final class Output extends ServletOutputStream {
+
+		private final ByteArrayOutputStream out;
+
+		Output(ByteArrayOutputStream out) {
+			this.out = out;
+		}
+
+		public void write(int b) {
+			out.write(b);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			out.write(b, off, len);
+		}
+
+		public boolean isReady() {
+			return true;
+		}
+
+		public void setWriteListener(WriteListener listener) {
+		}
+	}
+}
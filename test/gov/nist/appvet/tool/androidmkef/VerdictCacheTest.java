@@ -0,0 +1,93 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeNotNull;
+
+import gov.nist.appvet.tool.androidmkef.util.ToolStatus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that cached verdicts are only served to scans with the same
+ * settings, also after the index is reloaded.
+ * <p>
+ * Needs ANDROID_MKEF_FILES_HOME to point to a copy of
+ * deploy/android_mkef_files; skipped otherwise.
+ */
+public class VerdictCacheTest {
+
+	private static final String SHA256 = "00112233445566778899aabbccddeeff"
+			+ "00112233445566778899aabbccddeeff";
+	private File dir;
+	private boolean verifyCrc;
+	private boolean fastVerdict;
+
+	@Before
+	public void setUp() throws IOException {
+		assumeNotNull(System.getenv("ANDROID_MKEF_FILES_HOME"));
+		dir = Files.createTempDirectory("verdicts").toFile();
+		verifyCrc = Properties.verifyCrc;
+		fastVerdict = Properties.fastVerdict;
+	}
+
+	@After
+	public void tearDown() {
+		if (dir == null) {
+			return;
+		}
+		Properties.verifyCrc = verifyCrc;
+		Properties.fastVerdict = fastVerdict;
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void scanSettingsArePartOfTheKey() {
+		final File index = new File(dir, "verdicts.idx");
+		Properties.verifyCrc = false;
+		Properties.fastVerdict = true;
+		new VerdictCache(index, 10).put(SHA256, new VerdictCache.Verdict(0.0,
+				ToolStatus.LOW, "clean"));
+
+		Properties.verifyCrc = true;
+		assertNull(new VerdictCache(index, 10).get(SHA256));
+		Properties.verifyCrc = false;
+		Properties.fastVerdict = false;
+		assertNull(new VerdictCache(index, 10).get(SHA256));
+
+		Properties.fastVerdict = true;
+		final VerdictCache.Verdict verdict = new VerdictCache(index, 10)
+				.get(SHA256);
+		assertNotNull(verdict);
+		assertEquals("clean", verdict.getReport());
+	}
+}
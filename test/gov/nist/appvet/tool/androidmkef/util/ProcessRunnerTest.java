@@ -0,0 +1,74 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Checks that many callers share a runner whose stream readers are bounded
+ * by its slots, and that each still gets its own output.
+ * <p>
+ * Needs ANDROID_MKEF_FILES_HOME, for logging, and /bin/sh; skipped
+ * otherwise.
+ */
+public class ProcessRunnerTest {
+
+	@Test(timeout = 60000)
+	public void manyCallersShareBoundedDrainers() throws Exception {
+		assumeNotNull(System.getenv("ANDROID_MKEF_FILES_HOME"));
+		assumeTrue(new File("/bin/sh").canExecute());
+		final ProcessRunner runner = new ProcessRunner(2, 1024);
+		final ExecutorService callers = Executors.newFixedThreadPool(16);
+		try {
+			final List<Future<ProcessRunner.Result>> results = new ArrayList<Future<ProcessRunner.Result>>();
+			for (int i = 0; i < 64; i++) {
+				final String text = "run" + i;
+				results.add(callers.submit(new Callable<ProcessRunner.Result>() {
+					public ProcessRunner.Result call() {
+						return runner.run("test", Arrays.asList("/bin/sh",
+								"-c", "echo " + text + "; echo " + text
+										+ " >&2"), 10000);
+					}
+				}));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				final ProcessRunner.Result result = results.get(i).get();
+				assertTrue(result.isSuccess());
+				assertEquals("run" + i, result.getOutput().trim());
+			}
+		} finally {
+			callers.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef.util;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the footprint of platform and virtual threads started through
+ * Threads while they block, as the pdf and deliver workers and the process
+ * stream readers do. Run it once per mode, each in its own JVM:
+ * <p>
+ * java ThreadsBenchmark platform|virtual [threads] [rounds]
+ * <p>
+ * For each round it prints the time to start all threads, the number of
+ * live JVM (carrier or platform) threads, the heap in use and, on Linux,
+ * the resident set size, all measured while every thread is blocked.
+ */
+public class ThreadsBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final boolean virtual = args.length > 0 && "virtual".equals(args[0]);
+		final int threads = args.length > 1 ? Integer.parseInt(args[1])
+				: 10000;
+		final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		System.out.println("java.version=" + System.getProperty("java.version")
+				+ " mode=" + (virtual ? "virtual" : "platform")
+				+ " virtualAvailable=" + Threads.isVirtualAvailable()
+				+ " threads=" + threads);
+		for (int round = 1; round <= rounds; round++) {
+			run(round, virtual, threads);
+		}
+	}
+
+	private static void run(int round, boolean virtual, int count)
+			throws InterruptedException {
+		System.gc();
+		final long heapBefore = usedHeap();
+		final long rssBefore = residentSetSize();
+		final CountDownLatch started = new CountDownLatch(count);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Thread> threads = new ArrayList<Thread>(count);
+		final long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			threads.add(Threads.start("bench-" + i, new Runnable() {
+				public void run() {
+					started.countDown();
+					try {
+						// Blocks like a delivery waiting on AppVet
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, virtual));
+		}
+		started.await();
+		final long startMillis = (System.nanoTime() - start) / 1000000;
+		System.gc();
+		final int jvmThreads = ManagementFactory.getThreadMXBean()
+				.getThreadCount();
+		final long heap = usedHeap() - heapBefore;
+		final long rss = residentSetSize() - rssBefore;
+		final long gauge = Metrics.value(virtual && Threads.isVirtualAvailable()
+				? "threads.virtual.live" : "threads.platform.live");
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		System.out.println("round=" + round + " startMs=" + startMillis
+				+ " liveGauge=" + gauge + " jvmThreads=" + jvmThreads
+				+ " heapKb=" + heap / 1024 + " rssKb=" + rss / 1024);
+	}
+
+	private static long usedHeap() {
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/** Returns the resident set size in bytes, or 0 if it is unknown. */
+	private static long residentSetSize() {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader("/proc/self/status"));
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			}
+		} catch (IOException e) {
+			// Not Linux
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,112 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.appvet.tool.androidmkef.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that an upload spilled to disk is deleted when reading it fails.
+ */
+public class UploadedFileTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		// UploadedFile logs through Properties, which needs the tool home
+		assumeNotNull(System.getenv("ANDROID_MKEF_FILES_HOME"));
+		dir = Files.createTempDirectory("upload").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		if (dir != null) {
+			new File(dir, "app.apk").delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void failedReadDeletesSpillFile() {
+		final File spill = new File(dir, "app.apk");
+		try {
+			UploadedFile.receive(new AbortingStream(64 * 1024), 1024,
+					spill.getPath());
+			fail("Expected the read to fail");
+		} catch (IOException e) {
+			assertEquals("Client aborted", e.getMessage());
+		}
+		assertFalse(spill.exists());
+	}
+
+	@Test
+	public void completeReadKeepsSpillFile() throws IOException {
+		final File spill = new File(dir, "app.apk");
+		final byte[] content = new byte[64 * 1024];
+		content[content.length - 1] = 1;
+		final UploadedFile upload = UploadedFile.receive(
+				new ByteArrayInputStream(content), 1024, spill.getPath());
+		assertFalse(upload.isInMemory());
+		assertTrue(spill.exists());
+		assertArrayEquals(content, Files.readAllBytes(spill.toPath()));
+	}
+
+	/** Returns zeros until limit bytes were read, then fails. */
+	private static class AbortingStream extends InputStream {
+
+		private int remaining;
+
+		AbortingStream(int limit) {
+			this.remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0];
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length)
+				throws IOException {
+			if (remaining == 0) {
+				throw new IOException("Client aborted");
+			}
+			final int n = Math.min(length, remaining);
+			remaining -= n;
+			return n;
+		}
+	}
+}